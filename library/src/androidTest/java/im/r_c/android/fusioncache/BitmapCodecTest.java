@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import android.graphics.Bitmap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BitmapCodecTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void losslessFormatsKeepEveryPixel() {
+        Bitmap bitmap = newBitmap(Bitmap.Config.ARGB_8888);
+        for (BitmapCodec.Format format : Arrays.asList(BitmapCodec.Format.RAW, BitmapCodec.Format.PNG)) {
+            BitmapCodec codec = new BitmapCodec(format, 100);
+            byte[] encoded = codec.encode(bitmap);
+            assertEquals(format.id, encoded[0]);
+            Bitmap decoded = codec.decode(encoded);
+            assertTrue(format.toString(), bitmap.sameAs(decoded));
+        }
+    }
+
+    @Test
+    public void rawKeepsTheConfig() {
+        Bitmap bitmap = newBitmap(Bitmap.Config.RGB_565);
+        BitmapCodec codec = new BitmapCodec(BitmapCodec.Format.RAW, 0);
+        Bitmap decoded = codec.decode(codec.encode(bitmap));
+        assertEquals(Bitmap.Config.RGB_565, decoded.getConfig());
+        assertTrue(bitmap.sameAs(decoded));
+    }
+
+    @Test
+    public void lossyFormatsKeepTheSize() {
+        Bitmap bitmap = newBitmap(Bitmap.Config.ARGB_8888);
+        for (BitmapCodec.Format format : Arrays.asList(BitmapCodec.Format.JPEG, BitmapCodec.Format.WEBP)) {
+            Bitmap decoded = new BitmapCodec(format, 80).decode(new BitmapCodec(format, 80).encode(bitmap));
+            assertNotNull(format.toString(), decoded);
+            assertEquals(bitmap.getWidth(), decoded.getWidth());
+            assertEquals(bitmap.getHeight(), decoded.getHeight());
+        }
+    }
+
+    @Test
+    public void valuesAreDecodedInTheFormatTheyWereWrittenIn() {
+        Bitmap bitmap = newBitmap(Bitmap.Config.ARGB_8888);
+        BitmapCodec png = new BitmapCodec(BitmapCodec.Format.PNG, 100);
+        BitmapCodec raw = new BitmapCodec(BitmapCodec.Format.RAW, 0);
+        assertTrue(bitmap.sameAs(png.decode(raw.encode(bitmap))));
+        assertTrue(bitmap.sameAs(raw.decode(png.encode(bitmap))));
+    }
+
+    @Test
+    public void truncatedRawValueIsNotDecoded() {
+        BitmapCodec codec = new BitmapCodec(BitmapCodec.Format.RAW, 0);
+        byte[] encoded = codec.encode(newBitmap(Bitmap.Config.ARGB_8888));
+        assertNull(codec.decode(Arrays.copyOf(encoded, encoded.length - 1)));
+        assertNull(codec.decode(Arrays.copyOf(encoded, 5)));
+    }
+
+    @Test
+    public void diskCacheUsesTheConfiguredEncoding() throws Exception {
+        Bitmap bitmap = newBitmap(Bitmap.Config.ARGB_8888);
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), 1024 * 1024);
+        cache.put("default", bitmap);
+        cache.setBitmapEncoding(new BitmapCodec(BitmapCodec.Format.RAW, 0));
+        cache.put("raw", bitmap);
+        cache.put("jpeg", bitmap, new BitmapCodec(BitmapCodec.Format.JPEG, 80));
+
+        assertTrue(bitmap.sameAs(cache.getBitmap("default")));
+        assertTrue(bitmap.sameAs(cache.getBitmap("raw")));
+        assertEquals(bitmap.getWidth(), cache.getBitmap("jpeg").getWidth());
+    }
+
+    private static Bitmap newBitmap(Bitmap.Config config) {
+        Bitmap bitmap = Bitmap.createBitmap(16, 8, config);
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            for (int x = 0; x < bitmap.getWidth(); x++) {
+                bitmap.setPixel(x, y, 0xFF000000 | (x * 16) << 16 | (y * 32) << 8 | 0x80);
+            }
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BitmapPoolTest {
+    @Test
+    public void bitmapOfTheSameShapeIsReused() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        assertEquals(16 * 8 * 4, pool.size());
+        assertSame(bitmap, pool.get(16, 8, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.size());
+        assertNull(pool.get(16, 8, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void immutableOrOversizeBitmapIsRecycled() {
+        BitmapPool pool = new BitmapPool(16 * 8 * 4);
+        Bitmap immutable = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888).copy(Bitmap.Config.ARGB_8888, false);
+        pool.put(immutable);
+        assertTrue(immutable.isRecycled());
+
+        Bitmap large = Bitmap.createBitmap(32, 8, Bitmap.Config.ARGB_8888);
+        pool.put(large);
+        assertTrue(large.isRecycled());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void eldestBitmapIsRecycledWhenFull() {
+        BitmapPool pool = new BitmapPool(2 * 16 * 8 * 4);
+        Bitmap first = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888);
+        Bitmap second = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888);
+        Bitmap third = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+        assertTrue(first.isRecycled());
+        assertFalse(second.isRecycled());
+        assertSame(third, pool.get(16, 8, Bitmap.Config.ARGB_8888));
+        assertSame(second, pool.get(16, 8, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void evictedBitmapIsPooledAfterTheLastRelease() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        MemCache memCache = new MemCache(16 * 8 * 4);
+        memCache.setBitmapPool(pool);
+        Bitmap bitmap = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888);
+        // As decoded by the cache for an acquireBitmap() caller
+        assertTrue(memCache.putAcquired("k", bitmap, 16 * 8 * 4, null));
+        assertSame(bitmap, memCache.acquireBitmap("k"));
+
+        memCache.releaseBitmap(bitmap);
+        memCache.put("other", new byte[16]);
+        assertEquals(0, pool.size());
+        assertFalse(bitmap.isRecycled());
+
+        memCache.releaseBitmap(bitmap);
+        assertSame(bitmap, pool.get(16, 8, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void bitmapGotWithoutAcquiringIsNeverPooled() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        MemCache memCache = new MemCache(16 * 8 * 4);
+        memCache.setBitmapPool(pool);
+        Bitmap bitmap = Bitmap.createBitmap(16, 8, Bitmap.Config.ARGB_8888);
+        memCache.putAcquired("k", bitmap, 16 * 8 * 4, null);
+        assertSame(bitmap, memCache.getBitmap("k"));
+
+        memCache.releaseBitmap(bitmap);
+        memCache.put("other", new byte[16]);
+        assertEquals(0, pool.size());
+        assertFalse(bitmap.isRecycled());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FusionCache
+ * <p>
+ * Adaptive Replacement Cache eviction policy (by Megiddo and Modha).
+ * <p>
+ * Keeps entries seen once (T1) and entries seen at least twice (T2)
+ * in two LRU lists, plus ghost lists (B1 and B2) remembering keys recently
+ * evicted from each. A hit in a ghost list means that list was too short,
+ * so the target size of T1 moves toward it, letting the policy adapt
+ * between recency and frequency without tuning.
+ * <p>
+ * Sizes are weighted by the entries' sizes, instead of counting entries.
+ */
+public class ArcPolicy<K> implements EvictionPolicy<K> {
+    /**
+     * Nodes of resident keys and ghost keys.
+     */
+    private final Map<K, PolicyQueue.Node<K>> mNodes = new HashMap<>();
+    private final PolicyQueue<K> mT1 = new PolicyQueue<>();
+    private final PolicyQueue<K> mT2 = new PolicyQueue<>();
+    private final PolicyQueue<K> mB1 = new PolicyQueue<>();
+    private final PolicyQueue<K> mB2 = new PolicyQueue<>();
+
+    /**
+     * Target size of T1.
+     */
+    private long mTarget;
+
+    @Override
+    public void onInsert(K key, int size) {
+        PolicyQueue.Node<K> ghost = mNodes.get(key);
+        long capacity = residentWeight() + size;
+        if (ghost != null && ghost.queue == mB1) {
+            long delta = (long) size * Math.max(mB2.count() / Math.max(mB1.count(), 1), 1);
+            mTarget = Math.min(mTarget + delta, capacity);
+        } else if (ghost != null && ghost.queue == mB2) {
+            long delta = (long) size * Math.max(mB1.count() / Math.max(mB2.count(), 1), 1);
+            mTarget = Math.max(mTarget - delta, 0);
+        }
+        if (ghost != null) {
+            ghost.queue.remove(ghost);
+        }
+
+        PolicyQueue.Node<K> node = new PolicyQueue.Node<>(key, size);
+        mNodes.put(key, node);
+        if (ghost != null) {
+            mT2.addLast(node);
+        } else {
+            mT1.addLast(node);
+        }
+    }
+
+    @Override
+    public void onAccess(K key) {
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node != null && (node.queue == mT1 || node.queue == mT2)) {
+            mT2.addLast(node);
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node != null && (node.queue == mT1 || node.queue == mT2)) {
+            mNodes.remove(key);
+            node.queue.remove(node);
+        }
+    }
+
+    @Override
+    public K victim() {
+        PolicyQueue.Node<K> victim;
+        if (!mT1.isEmpty() && (mT1.weight() > mTarget || mT2.isEmpty())) {
+            victim = mT1.peekFirst();
+            mB1.addLast(victim);
+        } else {
+            victim = mT2.peekFirst();
+            mB2.addLast(victim);
+        }
+
+        // Ghosts remember at most as much as the cache holds
+        long capacity = residentWeight();
+        while (!mB1.isEmpty() && mT1.weight() + mB1.weight() > capacity) {
+            mNodes.remove(mB1.pollFirst().key);
+        }
+        while (!mB2.isEmpty() && mB1.weight() + mB2.weight() > capacity) {
+            mNodes.remove(mB2.pollFirst().key);
+        }
+        return victim.key;
+    }
+
+    private long residentWeight() {
+        return mT1.weight() + mT2.weight();
+    }
+
+    @Override
+    public String toString() {
+        return "ArcPolicy{" +
+                "t1=" + mT1.count() +
+                ", t2=" + mT2.count() +
+                ", b1=" + mB1.count() +
+                ", b2=" + mB2.count() +
+                ", target=" + mTarget +
+                '}';
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * FusionCache
+ * <p>
+ * A {@link Codec} of bitmaps with a configurable encoding:
+ * <ul>
+ * <li>{@link Format#RAW}: the pixels as they are in memory, the fastest to write and read
+ * but the largest, and lossless</li>
+ * <li>{@link Format#PNG}: lossless, slow to compress</li>
+ * <li>{@link Format#JPEG} and {@link Format#WEBP}: lossy with a quality, the smallest</li>
+ * </ul>
+ * The encoding is recorded in the first byte of every encoded value,
+ * so values are decoded correctly whatever encoding is configured when reading.
+ * <p>
+ * Set it for a cache with {@link DiskCache2#setBitmapEncoding},
+ * or for a single value with {@link DiskCache2#put(String, Bitmap, BitmapCodec)}.
+ */
+public class BitmapCodec implements BufferCodec<Bitmap> {
+    /**
+     * Version 2 added the leading encoding byte.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Encoding byte, then width, height, config and whether it has alpha.
+     */
+    private static final int RAW_HEADER_SIZE = 11;
+
+    private static final Bitmap.Config[] CONFIGS = {
+            Bitmap.Config.ALPHA_8, Bitmap.Config.RGB_565,
+            Bitmap.Config.ARGB_4444, Bitmap.Config.ARGB_8888};
+
+    public enum Format {
+        RAW(0), PNG(1), JPEG(2), WEBP(3);
+
+        /**
+         * Stored in the encoded values, never change them.
+         */
+        final int id;
+
+        Format(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Format mFormat;
+    private final int mQuality;
+
+    /**
+     * @param quality 0 ~ 100, ignored by lossless formats.
+     */
+    public BitmapCodec(Format format, int quality) {
+        if (format == null) {
+            throw new IllegalArgumentException("Format can't be null.");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality should be in 0 ~ 100.");
+        }
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    @Override
+    public int version() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Bitmap value) {
+        if (value == null) {
+            return null;
+        }
+        if (mFormat == Format.RAW) {
+            return encodeRaw(value);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        return encodeCompressed(value, baos) ? baos.toByteArray() : null;
+    }
+
+    @Override
+    public void encode(Bitmap value, OutputStream out) throws IOException {
+        if (value == null) {
+            throw new IOException("Bitmap is null.");
+        }
+        if (mFormat == Format.RAW) {
+            // copyPixelsToBuffer needs a buffer of all pixels anyway
+            byte[] bytes = encodeRaw(value);
+            if (bytes == null) {
+                throw new IOException("Can't copy pixels of " + value + ".");
+            }
+            out.write(bytes);
+        } else if (!encodeCompressed(value, out)) {
+            throw new IOException("Can't compress " + value + ".");
+        }
+    }
+
+    private boolean encodeCompressed(Bitmap value, OutputStream out) {
+        Format format = mFormat;
+        if (format == Format.WEBP && Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            // No WEBP encoder before API 14
+            format = Format.PNG;
+        }
+        Bitmap.CompressFormat compressFormat;
+        switch (format) {
+            case JPEG:
+                compressFormat = Bitmap.CompressFormat.JPEG;
+                break;
+            case WEBP:
+                compressFormat = Bitmap.CompressFormat.WEBP;
+                break;
+            default:
+                compressFormat = Bitmap.CompressFormat.PNG;
+                break;
+        }
+        try {
+            out.write(format.id);
+        } catch (IOException e) {
+            return false;
+        }
+        return value.compress(compressFormat, mQuality, out);
+    }
+
+    @Override
+    public Bitmap decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return decode(data, 0, data.length);
+    }
+
+    @Override
+    public Bitmap decode(byte[] data, int offset, int length) {
+        return decode(data, offset, length, null);
+    }
+
+    /**
+     * Decode into a bitmap from {@code pool} if there's one to reuse.
+     * Bitmaps decoded with a pool are mutable, so they can be put into it later.
+     *
+     * @param pool May be null.
+     */
+    public Bitmap decode(byte[] data, int offset, int length, BitmapPool pool) {
+        if (length == 0) {
+            return null;
+        }
+        if (data[offset] == Format.RAW.id) {
+            return decodeRaw(data, offset, length, pool);
+        }
+        if (pool == null) {
+            // BitmapFactory tells compressed formats apart by itself
+            return BitmapFactory.decodeByteArray(data, offset + 1, length - 1);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset + 1, length - 1, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || data[offset] != Format.WEBP.id) {
+            // Only JPEG and PNG can be decoded into existing bitmaps before KitKat
+            options.inBitmap = pool.get(options.outWidth, options.outHeight, options.inPreferredConfig);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, offset + 1, length - 1, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be reused after all, its pixels are garbage now
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset + 1, length - 1, options);
+        }
+    }
+
+    private static byte[] encodeRaw(Bitmap value) {
+        Bitmap bitmap = value;
+        int configId = configIdOf(bitmap.getConfig());
+        if (configId < 0) {
+            // Unknown config, like a bitmap from a newer platform
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            if (bitmap == null) {
+                return null;
+            }
+            configId = configIdOf(Bitmap.Config.ARGB_8888);
+        }
+
+        int pixelSize = bitmap.getByteCount();
+        ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + pixelSize);
+        buffer.put((byte) Format.RAW.id);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.put((byte) configId);
+        buffer.put((byte) (bitmap.hasAlpha() ? 1 : 0));
+        bitmap.copyPixelsToBuffer(buffer);
+        return buffer.array();
+    }
+
+    private static Bitmap decodeRaw(byte[] data, int offset, int length, BitmapPool pool) {
+        if (length < RAW_HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        buffer.get();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int configId = buffer.get();
+        boolean hasAlpha = buffer.get() != 0;
+        if (width <= 0 || height <= 0 || configId < 0 || configId >= CONFIGS.length) {
+            return null;
+        }
+
+        Bitmap bitmap = pool != null ? pool.get(width, height, CONFIGS[configId]) : null;
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, CONFIGS[configId]);
+        }
+        if (buffer.remaining() < bitmap.getByteCount()) {
+            // Truncated
+            if (pool != null) {
+                pool.put(bitmap);
+            } else {
+                bitmap.recycle();
+            }
+            return null;
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        bitmap.setHasAlpha(hasAlpha);
+        return bitmap;
+    }
+
+    private static int configIdOf(Bitmap.Config config) {
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (CONFIGS[i] == config) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapCodec{" +
+                "format=" + mFormat +
+                ", quality=" + mQuality +
+                '}';
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FusionCache
+ * <p>
+ * A bounded pool of bitmaps no longer used by anyone,
+ * reused to decode other bitmaps of the same size and config
+ * (or of any smaller size since KitKat), instead of allocating new ones.
+ * <p>
+ * {@link MemCache} and {@link FusionCache} feed it with evicted bitmaps
+ * acquired through {@code acquireBitmap} and given back with {@code releaseBitmap},
+ * and {@link DiskCache2} takes from it when decoding.
+ * Set the same pool to both, see {@link FusionCache#setBitmapPool(BitmapPool)}.
+ * <p>
+ * A thread-safe class.
+ */
+public class BitmapPool {
+    /**
+     * Never reuse a bitmap this many times bigger than needed,
+     * it would hold the extra memory for nothing.
+     */
+    private static final int MAX_OVERSIZE_FACTOR = 4;
+
+    /**
+     * Least recently put first.
+     */
+    private final List<Bitmap> mBitmaps = new ArrayList<>();
+    private final long mMaxSize;
+    private long mSize;
+
+    /**
+     * @param maxSize Max total bytes of bitmaps kept in the pool.
+     */
+    public BitmapPool(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Put a bitmap no one references anymore into the pool.
+     * Bitmaps that can't be reused or don't fit are recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (!bitmap.isMutable() || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            mBitmaps.add(bitmap);
+            mSize += size;
+            while (mSize > mMaxSize) {
+                Bitmap eldest = mBitmaps.remove(0);
+                mSize -= sizeOf(eldest);
+                eldest.recycle();
+            }
+        }
+    }
+
+    /**
+     * Take a bitmap of exactly {@code width}, {@code height} and {@code config} from the pool.
+     * Its pixels are left as they were, the caller should overwrite all of them.
+     *
+     * @return The bitmap, or null if there's none to reuse.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap result = null;
+        synchronized (this) {
+            // Most recently put first, more likely to be in CPU cache
+            for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = mBitmaps.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config) {
+                    result = take(i);
+                    break;
+                }
+            }
+            if (result == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // Any config and size fits if it has enough memory
+                long needed = (long) width * height * bytesPerPixel(config);
+                int best = -1;
+                for (int i = 0; i < mBitmaps.size(); i++) {
+                    int size = mBitmaps.get(i).getAllocationByteCount();
+                    if (size >= needed && size <= needed * MAX_OVERSIZE_FACTOR
+                            && (best < 0 || size < mBitmaps.get(best).getAllocationByteCount())) {
+                        best = i;
+                    }
+                }
+                if (best >= 0) {
+                    result = take(best);
+                }
+            }
+        }
+        if (result != null && (result.getWidth() != width || result.getHeight() != height
+                || result.getConfig() != config)) {
+            result.reconfigure(width, height, config);
+        }
+        return result;
+    }
+
+    /**
+     * Recycle all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns the total bytes of bitmaps in the pool.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Only called while holding the lock of this pool.
+     */
+    private Bitmap take(int index) {
+        Bitmap bitmap = mBitmaps.remove(index);
+        mSize -= sizeOf(bitmap);
+        return bitmap;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapPool{" +
+                "size=" + size() +
+                ", maxSize=" + mMaxSize +
+                '}';
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * FusionCache
+ * <p>
+ * A {@link Codec} that can also encode into a stream and decode from part of an array,
+ * so disk cache can do both with buffers from its {@link ByteArrayPool}
+ * instead of exact-length arrays.
+ * <p>
+ * Implement this instead of {@code Codec} for types that are large
+ * or put and read a lot.
+ */
+public interface BufferCodec<T> extends Codec<T> {
+    void encode(T value, OutputStream out) throws IOException;
+
+    /**
+     * @param data Must not be kept after returning, since it may be reused.
+     */
+    T decode(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.ArrayDeque;
+
+/**
+ * FusionCache
+ * <p>
+ * A bounded pool of byte arrays, reused by disk cache for encoding and reading values,
+ * instead of allocating (often large) arrays for every operation.
+ * <p>
+ * Arrays are pooled in buckets of power-of-two lengths,
+ * so {@link #acquire(int)} may return an array longer than asked.
+ * Arrays longer than the max bucket are neither pooled nor returned from the pool.
+ * <p>
+ * A thread-safe class.
+ */
+public class ByteArrayPool {
+    private static final int MIN_BUCKET_SHIFT = 10; // 1 KB
+    private static final int MAX_BUCKET_SHIFT = 22; // 4 MB
+
+    private static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static ByteArrayPool sDefault;
+
+    private final ArrayDeque<byte[]>[] mBuckets;
+    private final long mMaxSize;
+    private long mSize;
+
+    /**
+     * Returns the pool shared by disk caches that aren't given one.
+     */
+    public static synchronized ByteArrayPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new ByteArrayPool(DEFAULT_MAX_SIZE);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxSize Max total length of arrays kept in the pool.
+     */
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMaxSize = maxSize;
+        mBuckets = (ArrayDeque<byte[]>[]) new ArrayDeque<?>[MAX_BUCKET_SHIFT - MIN_BUCKET_SHIFT + 1];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Get an array at least {@code minLength} long, from the pool if there is one.
+     * Give it back with {@link #release(byte[])} when it's no longer used.
+     */
+    public byte[] acquire(int minLength) {
+        int bucket = bucketFor(minLength);
+        if (bucket < 0) {
+            return new byte[minLength];
+        }
+        synchronized (this) {
+            byte[] array = mBuckets[bucket].pollLast();
+            if (array != null) {
+                mSize -= array.length;
+                return array;
+            }
+        }
+        return new byte[1 << (bucket + MIN_BUCKET_SHIFT)];
+    }
+
+    /**
+     * Return an array to the pool. It must not be used by the caller afterwards.
+     * Arrays not acquired from a pool may be released too, if they are of a bucket length.
+     */
+    public void release(byte[] array) {
+        if (array == null) {
+            return;
+        }
+        int bucket = bucketFor(array.length);
+        if (bucket < 0 || array.length != 1 << (bucket + MIN_BUCKET_SHIFT) || array.length > mMaxSize) {
+            return;
+        }
+        synchronized (this) {
+            while (mSize + array.length > mMaxSize) {
+                // Make room from the bucket holding most, keeping the pool balanced
+                int fullest = fullestBucket();
+                if (fullest < 0) {
+                    return;
+                }
+                mSize -= mBuckets[fullest].pollFirst().length;
+            }
+            mBuckets[bucket].addLast(array);
+            mSize += array.length;
+        }
+    }
+
+    /**
+     * Drop all pooled arrays.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> bucket : mBuckets) {
+            bucket.clear();
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Returns the total length of arrays in the pool.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Only called while holding the lock of this pool.
+     */
+    private int fullestBucket() {
+        int fullest = -1;
+        long fullestSize = 0;
+        for (int i = 0; i < mBuckets.length; i++) {
+            long size = (long) mBuckets[i].size() << (i + MIN_BUCKET_SHIFT);
+            if (size > fullestSize) {
+                fullest = i;
+                fullestSize = size;
+            }
+        }
+        return fullest;
+    }
+
+    /**
+     * @return Index of the smallest bucket holding arrays of at least {@code length},
+     * or -1 if it's longer than the max bucket.
+     */
+    private static int bucketFor(int length) {
+        if (length > 1 << MAX_BUCKET_SHIFT) {
+            return -1;
+        }
+        if (length <= 1 << MIN_BUCKET_SHIFT) {
+            return 0;
+        }
+        // Ceiling of log2
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_BUCKET_SHIFT;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteArrayPool{" +
+                "size=" + size() +
+                ", maxSize=" + mMaxSize +
+                '}';
+    }
+}
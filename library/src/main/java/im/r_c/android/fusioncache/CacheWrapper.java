@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.Map;
+
+/**
+ * FusionCache
+ * <p>
+ * Common functions of the in-memory LRU structures
+ * that back {@link MemCache}, so that they can replace each other.
+ */
+interface CacheWrapper<K, V> {
+    /**
+     * Caches {@code value} for {@code key}.
+     *
+     * @return The previous value mapped by {@code key}.
+     */
+    V put(K key, V value);
+
+    /**
+     * Caches {@code value} for {@code key}.
+     *
+     * @param sink Receives the entries evicted by this call, may be null.
+     * @return The previous value mapped by {@code key}.
+     */
+    V put(K key, V value, EvictionSink<K, V> sink);
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, or null.
+     */
+    V get(K key);
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return The previous value mapped by {@code key}.
+     */
+    V remove(K key);
+
+    /**
+     * Clear the cache.
+     */
+    void evictAll();
+
+    /**
+     * Returns the sum of the sizes of the entries in this cache.
+     */
+    long size();
+
+    /**
+     * Returns the maximum sum of the sizes of the entries in this cache.
+     */
+    long maxSize();
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    Map<K, V> snapshot();
+}
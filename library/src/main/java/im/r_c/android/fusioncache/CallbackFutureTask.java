@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * FusionCache
+ * <p>
+ * A {@code FutureTask} that reports its outcome to a {@link FusionCache.Callback},
+ * unless it was cancelled.
+ */
+class CallbackFutureTask<T> extends FutureTask<T> {
+    /**
+     * May be null.
+     */
+    private final FusionCache.Callback<? super T> mCallback;
+
+    CallbackFutureTask(Callable<T> callable, FusionCache.Callback<? super T> callback) {
+        super(callable);
+        mCallback = callback;
+    }
+
+    /**
+     * Complete with {@code e} without running, like when an executor rejected this.
+     */
+    void fail(Throwable e) {
+        setException(e);
+    }
+
+    @Override
+    protected void done() {
+        if (mCallback == null || isCancelled()) {
+            return;
+        }
+
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            mCallback.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException | CancellationException e) {
+            // Can't happen, the task is done and not cancelled
+            return;
+        }
+        mCallback.onSuccess(result);
+    }
+}
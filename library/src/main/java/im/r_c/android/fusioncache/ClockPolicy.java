@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FusionCache
+ * <p>
+ * CLOCK (second chance) eviction policy.
+ * <p>
+ * Approximates LRU with a reference bit per entry. A hit only sets the bit,
+ * without reordering anything, which makes hits cheaper than in LRU.
+ * The clock hand clears set bits while passing over them,
+ * and evicts the first entry whose bit is clear.
+ */
+public class ClockPolicy<K> implements EvictionPolicy<K> {
+    private final Map<K, PolicyQueue.Node<K>> mNodes = new HashMap<>();
+
+    /**
+     * The clock, the hand is at the head.
+     */
+    private final PolicyQueue<K> mClock = new PolicyQueue<>();
+
+    @Override
+    public void onInsert(K key, int size) {
+        PolicyQueue.Node<K> node = new PolicyQueue.Node<>(key, size);
+        mNodes.put(key, node);
+        // Right behind the hand
+        mClock.addLast(node);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node != null) {
+            node.referenced = true;
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        PolicyQueue.Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            mClock.remove(node);
+        }
+    }
+
+    @Override
+    public K victim() {
+        while (true) {
+            PolicyQueue.Node<K> node = mClock.peekFirst();
+            if (node.referenced) {
+                // Second chance, advance the hand past it
+                node.referenced = false;
+                mClock.addLast(node);
+            } else {
+                mClock.remove(node);
+                mNodes.remove(node.key);
+                return node.key;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ClockPolicy{" +
+                "size=" + mClock.count() +
+                '}';
+    }
+}
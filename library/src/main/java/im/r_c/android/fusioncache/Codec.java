@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.IOException;
+
+/**
+ * FusionCache
+ * <p>
+ * Converts values of a type to bytes stored in disk cache and back.
+ * <p>
+ * Register one with {@link CodecRegistry#register} to store your own types,
+ * or to replace a built-in one in {@link Codecs}.
+ * Must be thread-safe.
+ */
+public interface Codec<T> {
+    /**
+     * Version of the format this codec writes, 0 ~ 65535, stored with every entry.
+     * Change it when changing the format, then entries written
+     * in other versions are treated as missing instead of being decoded.
+     */
+    int version();
+
+    byte[] encode(T value) throws IOException;
+
+    T decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FusionCache
+ * <p>
+ * {@link Codec}s of a disk cache, keyed by the class of values.
+ * <p>
+ * A class without a codec of its own uses the codec of its nearest
+ * superclass, or else of an interface it implements
+ * (so any {@link Serializable} class uses {@link Codecs#SERIALIZABLE}).
+ * The codec found for a class is remembered, so after the first time
+ * finding a codec costs a single hash lookup.
+ * <p>
+ * Each registered class has a type id, stored in the {@link EntryHeader}
+ * of every entry, so that an entry can be decoded without knowing its class,
+ * and reading it as another class is rejected without decoding.
+ * Type ids must stay the same across app versions.
+ * <p>
+ * This class is thread-safe.
+ */
+public class CodecRegistry {
+    /**
+     * Type ids of the built-in types, never change them.
+     */
+    private static final Map<Class<?>, Integer> BUILT_IN_TYPE_IDS = new HashMap<>();
+
+    static {
+        BUILT_IN_TYPE_IDS.put(String.class, 1);
+        BUILT_IN_TYPE_IDS.put(JSONObject.class, 2);
+        BUILT_IN_TYPE_IDS.put(JSONArray.class, 3);
+        BUILT_IN_TYPE_IDS.put(byte[].class, 4);
+        BUILT_IN_TYPE_IDS.put(Bitmap.class, 5);
+        BUILT_IN_TYPE_IDS.put(Drawable.class, 6);
+        BUILT_IN_TYPE_IDS.put(Serializable.class, 7);
+    }
+
+    /**
+     * Marks classes known to have no codec in {@link #mResolved}.
+     */
+    private static final Registration<Object> NONE = new Registration<>(Object.class, 0, null);
+
+    private final ConcurrentHashMap<Class<?>, Registration<?>> mRegistered = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Registration<?>> mById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, Registration<?>> mResolved = new ConcurrentHashMap<>();
+
+    /**
+     * Create a registry with the built-in codecs.
+     */
+    public CodecRegistry() {
+        register(String.class, Codecs.STRING);
+        register(JSONObject.class, Codecs.JSON_OBJECT);
+        register(JSONArray.class, Codecs.JSON_ARRAY);
+        register(byte[].class, Codecs.BYTES);
+        register(Bitmap.class, Codecs.BITMAP);
+        register(Drawable.class, Codecs.DRAWABLE);
+        register(Serializable.class, Codecs.SERIALIZABLE);
+    }
+
+    /**
+     * Use {@code codec} for values of {@code clz} (and its subclasses without a codec of their own),
+     * replacing the previous codec of {@code clz} if any.
+     * <p>
+     * The type id is the fixed one of a built-in type,
+     * or else the hash code of the class name.
+     * If you replace the codec of a class with one writing another format,
+     * give it another {@link Codec#version()}, so old entries are skipped.
+     */
+    public <T> void register(Class<T> clz, Codec<T> codec) {
+        if (clz == null) {
+            throw new IllegalArgumentException("Class can't be null.");
+        }
+        Integer typeId = BUILT_IN_TYPE_IDS.get(clz);
+        register(clz, typeId != null ? typeId : clz.getName().hashCode(), codec);
+    }
+
+    /**
+     * Like {@link #register(Class, Codec)}, with a type id chosen by you,
+     * for example to keep reading entries after renaming {@code clz}.
+     */
+    public synchronized <T> void register(Class<T> clz, int typeId, Codec<T> codec) {
+        if (clz == null || codec == null) {
+            throw new IllegalArgumentException("Class and codec can't be null.");
+        }
+        Registration<?> sameId = mById.get(typeId);
+        if (sameId != null && sameId.clz != clz) {
+            throw new IllegalArgumentException("Type id " + typeId + " is already used by "
+                    + sameId.clz.getName() + ", register " + clz.getName() + " with another one.");
+        }
+
+        Registration<T> registration = new Registration<>(clz, typeId, codec);
+        Registration<?> previous = mRegistered.put(clz, registration);
+        if (previous != null) {
+            mById.remove(previous.typeId);
+        }
+        mById.put(typeId, registration);
+        // Resolutions of subclasses may have changed
+        mResolved.clear();
+    }
+
+    /**
+     * Returns the registration to use for values of {@code clz}, or null if there isn't one.
+     * <p>
+     * It may be registered for a supertype of {@code clz},
+     * so a decoded value has to be checked with {@code clz.isInstance}.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Registration<? super T> registrationFor(Class<T> clz) {
+        Registration<?> registration = mResolved.get(clz);
+        if (registration == null) {
+            registration = resolve(clz);
+            mResolved.put(clz, registration);
+        }
+        return registration == NONE ? null : (Registration<? super T>) registration;
+    }
+
+    /**
+     * Returns the registration of the type id stored in an entry, or null if it's unknown.
+     */
+    Registration<?> registrationFor(int typeId) {
+        return mById.get(typeId);
+    }
+
+    /**
+     * Find the registration of the nearest superclass,
+     * then of the interfaces, nearest first.
+     */
+    private Registration<?> resolve(Class<?> clz) {
+        for (Class<?> c = clz; c != null; c = c.getSuperclass()) {
+            Registration<?> registration = mRegistered.get(c);
+            if (registration != null) {
+                return registration;
+            }
+        }
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        for (Class<?> c = clz; c != null; c = c.getSuperclass()) {
+            queue.add(c);
+        }
+        while (!queue.isEmpty()) {
+            Class<?> c = queue.poll();
+            for (Class<?> i : c.getInterfaces()) {
+                Registration<?> registration = mRegistered.get(i);
+                if (registration != null) {
+                    return registration;
+                }
+                queue.add(i);
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * A codec with the class and type id it's registered for.
+     */
+    static final class Registration<T> {
+        final Class<T> clz;
+        final int typeId;
+        final Codec<T> codec;
+
+        Registration(Class<T> clz, int typeId, Codec<T> codec) {
+            this.clz = clz;
+            this.typeId = typeId;
+            this.codec = codec;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import im.r_c.android.fusioncache.util.BitmapUtils;
+
+/**
+ * FusionCache
+ * <p>
+ * Built-in {@link Codec}s, registered in every {@link CodecRegistry}.
+ * <p>
+ * All but {@link #BYTES} are {@link BufferCodec}s, since a {@code byte[]} is stored as it is
+ * and must be read into an array of its own anyway.
+ */
+public final class Codecs {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(byte[] data) {
+            return data;
+        }
+    };
+
+    /**
+     * UTF-8, which is also the default charset of Android,
+     * so strings written before are still readable.
+     */
+    public static final BufferCodec<String> STRING = new BufferCodec<String>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(UTF_8);
+        }
+
+        @Override
+        public void encode(String value, OutputStream out) throws IOException {
+            out.write(value.getBytes(UTF_8));
+        }
+
+        @Override
+        public String decode(byte[] data) {
+            return new String(data, UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            return new String(data, offset, length, UTF_8);
+        }
+    };
+
+    public static final BufferCodec<JSONObject> JSON_OBJECT = new BufferCodec<JSONObject>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(JSONObject value) throws IOException {
+            return STRING.encode(value.toString());
+        }
+
+        @Override
+        public void encode(JSONObject value, OutputStream out) throws IOException {
+            STRING.encode(value.toString(), out);
+        }
+
+        @Override
+        public JSONObject decode(byte[] data) throws IOException {
+            return decode(data, 0, data.length);
+        }
+
+        @Override
+        public JSONObject decode(byte[] data, int offset, int length) throws IOException {
+            try {
+                return new JSONObject(STRING.decode(data, offset, length));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    public static final BufferCodec<JSONArray> JSON_ARRAY = new BufferCodec<JSONArray>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(JSONArray value) throws IOException {
+            return STRING.encode(value.toString());
+        }
+
+        @Override
+        public void encode(JSONArray value, OutputStream out) throws IOException {
+            STRING.encode(value.toString(), out);
+        }
+
+        @Override
+        public JSONArray decode(byte[] data) throws IOException {
+            return decode(data, 0, data.length);
+        }
+
+        @Override
+        public JSONArray decode(byte[] data, int offset, int length) throws IOException {
+            try {
+                return new JSONArray(STRING.decode(data, offset, length));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    /**
+     * Lossless PNG, see {@link BitmapCodec} for other encodings.
+     */
+    public static final BufferCodec<Bitmap> BITMAP = new BitmapCodec(BitmapCodec.Format.PNG, 100);
+
+    public static final BufferCodec<Drawable> DRAWABLE = drawable(BITMAP);
+
+    /**
+     * Java serialization.
+     */
+    public static final BufferCodec<Serializable> SERIALIZABLE = new BufferCodec<Serializable>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(Serializable value) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            encode(value, baos);
+            return baos.toByteArray();
+        }
+
+        @Override
+        public void encode(Serializable value, OutputStream out) throws IOException {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            try {
+                oos.writeObject(value);
+            } finally {
+                oos.close();
+            }
+        }
+
+        @Override
+        public Serializable decode(byte[] data) throws IOException {
+            return decode(data, 0, data.length);
+        }
+
+        @Override
+        public Serializable decode(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return null;
+            }
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+            try {
+                Object result = ois.readObject();
+                return result instanceof Serializable ? (Serializable) result : null;
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            } finally {
+                ois.close();
+            }
+        }
+    };
+
+    /**
+     * Returns a codec storing drawables as bitmaps with {@code bitmapCodec},
+     * so they can be read back as either a {@code Bitmap} or a {@code Drawable}.
+     * Decoded drawables are {@code BitmapDrawable}s without {@code Resources}.
+     */
+    public static BufferCodec<Drawable> drawable(final Codec<Bitmap> bitmapCodec) {
+        return new BufferCodec<Drawable>() {
+            @Override
+            public int version() {
+                return bitmapCodec.version();
+            }
+
+            @Override
+            public byte[] encode(Drawable value) throws IOException {
+                return bitmapCodec.encode(BitmapUtils.drawableToBitmap(value));
+            }
+
+            @Override
+            public void encode(Drawable value, OutputStream out) throws IOException {
+                encodeTo(bitmapCodec, BitmapUtils.drawableToBitmap(value), out);
+            }
+
+            @Override
+            public Drawable decode(byte[] data) throws IOException {
+                return BitmapUtils.bitmapToDrawable(bitmapCodec.decode(data), null);
+            }
+
+            @Override
+            public Drawable decode(byte[] data, int offset, int length) throws IOException {
+                return BitmapUtils.bitmapToDrawable(decodeFrom(bitmapCodec, data, offset, length), null);
+            }
+        };
+    }
+
+    /**
+     * Encode {@code value} into {@code out}, through an array of its own
+     * if {@code codec} isn't a {@link BufferCodec}.
+     *
+     * @throws IOException Also if {@code codec} can't encode the value.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> void encodeTo(Codec<? super T> codec, T value, OutputStream out) throws IOException {
+        if (codec instanceof BufferCodec) {
+            ((BufferCodec<? super T>) codec).encode(value, out);
+            return;
+        }
+        byte[] bytes = codec.encode(value);
+        if (bytes == null) {
+            throw new IOException("Can't encode value with " + codec + ".");
+        }
+        out.write(bytes);
+    }
+
+    /**
+     * Decode part of {@code data}, through an array of its own
+     * if {@code codec} isn't a {@link BufferCodec}.
+     */
+    static <T> T decodeFrom(Codec<T> codec, byte[] data, int offset, int length) throws IOException {
+        if (codec instanceof BufferCodec) {
+            return ((BufferCodec<T>) codec).decode(data, offset, length);
+        }
+        if (offset == 0 && length == data.length) {
+            return codec.decode(data);
+        }
+        return codec.decode(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    private Codecs() {
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * FusionCache
+ * <p>
+ * Compresses encoded values before they are written to disk cache,
+ * see {@link DiskCache2#setCompression}.
+ * <p>
+ * The id of the compressor is stored with every value it compressed,
+ * so a cache can read values compressed by any compressor it knows,
+ * whichever is used for writing.
+ * Must be thread-safe.
+ */
+public interface Compressor {
+    /**
+     * Id stored in compressed entries, 1 ~ 255, never change it.
+     * 1 is used by {@link DeflateCompressor}.
+     */
+    int id();
+
+    /**
+     * Compress {@code length} bytes of {@code data} from {@code offset}.
+     * {@code data} must not be kept after returning, since it may be reused.
+     *
+     * @return Compressed bytes, or null to store {@code data} uncompressed.
+     */
+    byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Read compressed bytes from {@code in} and decompress them.
+     *
+     * @param originalLength Length of the data before compression.
+     */
+    byte[] decompress(InputStream in, int originalLength) throws IOException;
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FusionCache
+ * <p>
+ * A drop-in alternative to {@link LruCacheWrapper} whose reads scale with cores.
+ * <p>
+ * Lookups go straight to a {@code ConcurrentHashMap} and never block.
+ * Instead of reordering the LRU list on every hit, a read is recorded into
+ * one of several small lossy buffers (picked by thread), and the buffers are
+ * applied to the LRU list in batches by whichever thread wins a try-lock.
+ * Records are dropped when a buffer is full, so the LRU order is approximate
+ * under heavy contention, which is fine for a cache.
+ * <p>
+ * Writes take the lock, drain the buffers, and report evicted entries
+ * the same way as {@link LruCacheWrapper} does.
+ * <p>
+ * This class is thread-safe.
+ */
+class ConcurrentLruCacheWrapper<K, V> implements CacheWrapper<K, V> {
+    private static final int READ_BUFFER_COUNT = ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * A reader tries to drain the buffers once its buffer holds this many records.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 4;
+
+    private final ConcurrentHashMap<K, Node<K, V>> mMap;
+    private final ReadBuffer<K, V>[] mReadBuffers;
+    private final ReentrantLock mEvictionLock = new ReentrantLock();
+
+    /**
+     * Sentinel of the circular LRU list, {@code mHead.next} is the eldest node.
+     * <p>
+     * The list is guarded by {@link #mEvictionLock}.
+     */
+    private final Node<K, V> mHead;
+
+    /**
+     * Written only while holding {@link #mEvictionLock}.
+     */
+    private volatile long mSize;
+    private final long mMaxSize;
+
+    /**
+     * Never be null.
+     */
+    private final LruCacheWrapper.Delegate<K, V> mDelegate;
+
+    /**
+     * @param maxSize The maximum sum of the sizes of the entries in this cache.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCacheWrapper(long maxSize, LruCacheWrapper.Delegate<K, V> delegate) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate can't be null.");
+        }
+        mMaxSize = maxSize;
+        mDelegate = delegate;
+        mMap = new ConcurrentHashMap<>();
+        mReadBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[READ_BUFFER_COUNT];
+        for (int i = 0; i < READ_BUFFER_COUNT; i++) {
+            mReadBuffers[i] = new ReadBuffer<>();
+        }
+        mHead = new Node<>(null, null, 0);
+        mHead.prev = mHead;
+        mHead.next = mHead;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, null);
+    }
+
+    @Override
+    public V put(K key, V value, EvictionSink<K, V> sink) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int size = mDelegate.sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        if (size > mMaxSize) {
+            throw new IllegalArgumentException("Object is bigger than max cache size.");
+        }
+
+        Node<K, V> node = new Node<>(key, value, size);
+        Node<K, V> previous;
+        Node<K, V> evictedNodes;
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+            long newSize = mSize + size;
+            previous = mMap.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+                newSize -= previous.size;
+            }
+            linkLast(node);
+            mSize = newSize;
+            evictedNodes = evictLocked();
+        } finally {
+            mEvictionLock.unlock();
+        }
+
+        // Call delegate without holding the lock, like LruCache does
+        if (previous != null) {
+            mDelegate.entryRemoved(false, key, previous.value, value);
+        }
+        for (Node<K, V> evicted = evictedNodes; evicted != null; ) {
+            Node<K, V> nextEvicted = evicted.nextEvicted;
+            evicted.nextEvicted = null;
+            mDelegate.entryRemoved(true, evicted.key, evicted.value, null);
+            if (sink != null) {
+                sink.onEvicted(evicted.key, evicted.value);
+            }
+            evicted = nextEvicted;
+        }
+        return previous != null ? previous.value : null;
+    }
+
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Node<K, V> node = mMap.get(key);
+        if (node == null) {
+            return null;
+        }
+        afterRead(node);
+        return node.value;
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Node<K, V> node;
+        mEvictionLock.lock();
+        try {
+            node = mMap.remove(key);
+            if (node != null) {
+                unlink(node);
+                mSize -= node.size;
+            }
+        } finally {
+            mEvictionLock.unlock();
+        }
+
+        if (node == null) {
+            return null;
+        }
+        mDelegate.entryRemoved(false, key, node.value, null);
+        return node.value;
+    }
+
+    @Override
+    public void evictAll() {
+        List<Node<K, V>> evictedNodes = new ArrayList<>();
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node<K, V> node = mHead.next; node != mHead; node = node.next) {
+                evictedNodes.add(node);
+            }
+            for (Node<K, V> node : evictedNodes) {
+                mMap.remove(node.key, node);
+                unlink(node);
+            }
+            mSize = 0;
+        } finally {
+            mEvictionLock.unlock();
+        }
+
+        for (Node<K, V> node : evictedNodes) {
+            mDelegate.entryRemoved(true, node.key, node.value, null);
+        }
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public Map<K, V> snapshot() {
+        Map<K, V> result = new LinkedHashMap<>();
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node<K, V> node = mHead.next; node != mHead; node = node.next) {
+                result.put(node.key, node.value);
+            }
+        } finally {
+            mEvictionLock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentLruCacheWrapper{" +
+                "size=" + mSize +
+                ", maxSize=" + mMaxSize +
+                '}';
+    }
+
+    /**
+     * Record an access to {@code node}, and apply the buffered accesses
+     * if there are enough of them and nobody else is doing it.
+     */
+    private void afterRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = mReadBuffers[readBufferIndex()];
+        if (buffer.offer(node) && mEvictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                mEvictionLock.unlock();
+            }
+        }
+    }
+
+    private static int readBufferIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & (READ_BUFFER_COUNT - 1);
+    }
+
+    /**
+     * Only called while holding {@link #mEvictionLock}.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : mReadBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    /**
+     * Move an accessed node to the tail (most recently used end) of the list.
+     * <p>
+     * Only called while holding {@link #mEvictionLock}.
+     */
+    private void onAccessLocked(Node<K, V> node) {
+        if (node.linked) {
+            // Nodes removed after the read was recorded are simply skipped
+            unlink(node);
+            linkLast(node);
+        }
+    }
+
+    /**
+     * Remove the eldest entries until the total size is at or below max size.
+     * <p>
+     * Only called while holding {@link #mEvictionLock}.
+     *
+     * @return The first evicted node, chained by {@code nextEvicted}
+     * in eviction order, or null if nothing was evicted.
+     */
+    private Node<K, V> evictLocked() {
+        Node<K, V> first = null;
+        Node<K, V> last = null;
+        long size = mSize;
+        while (size > mMaxSize && mHead.next != mHead) {
+            Node<K, V> eldest = mHead.next;
+            mMap.remove(eldest.key, eldest);
+            unlink(eldest);
+            size -= eldest.size;
+            if (last == null) {
+                first = eldest;
+            } else {
+                last.nextEvicted = eldest;
+            }
+            last = eldest;
+        }
+        mSize = size;
+        return first;
+    }
+
+    private void linkLast(Node<K, V> node) {
+        Node<K, V> last = mHead.prev;
+        node.prev = last;
+        node.next = mHead;
+        last.next = node;
+        mHead.prev = node;
+        node.linked = true;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (!node.linked) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        int result = Integer.highestOneBit(Math.max(x, 1));
+        return result < x ? result << 1 : result;
+    }
+
+    /**
+     * A node of the map and the LRU list.
+     * <p>
+     * {@code prev}, {@code next} and {@code linked} are guarded by {@link #mEvictionLock}.
+     */
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        Node<K, V> prev;
+        Node<K, V> next;
+        boolean linked;
+
+        /**
+         * Chains the nodes evicted by one put, so that reporting them needs no list.
+         * Set while holding {@link #mEvictionLock}, then read by the evicting thread only.
+         */
+        Node<K, V> nextEvicted;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A bounded, lossy, multiple-producer single-consumer ring of recorded reads.
+     * <p>
+     * Producers reserve a slot with a CAS and then publish the node into it.
+     * The consumer (holding {@link #mEvictionLock}) stops at the first slot
+     * that is reserved but not yet published.
+     */
+    private static final class ReadBuffer<K, V> {
+        final AtomicReferenceArray<Node<K, V>> mRecords = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final AtomicLong mWriteCount = new AtomicLong();
+
+        /**
+         * Written only by the consumer.
+         */
+        volatile long mReadCount;
+
+        /**
+         * Record a read, or drop it if the buffer is full or contended.
+         *
+         * @return Whether the buffer should be drained.
+         */
+        boolean offer(Node<K, V> node) {
+            long head = mReadCount;
+            long tail = mWriteCount.get();
+            long pending = tail - head;
+            if (pending >= READ_BUFFER_SIZE) {
+                return true;
+            }
+            if (mWriteCount.compareAndSet(tail, tail + 1)) {
+                mRecords.lazySet((int) (tail & READ_BUFFER_MASK), node);
+                pending++;
+            }
+            return pending >= READ_BUFFER_DRAIN_THRESHOLD;
+        }
+
+        void drainTo(ConcurrentLruCacheWrapper<K, V> cache) {
+            long head = mReadCount;
+            long tail = mWriteCount.get();
+            while (head < tail) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                Node<K, V> node = mRecords.get(index);
+                if (node == null) {
+                    // Reserved but not published yet, pick it up next time
+                    break;
+                }
+                mRecords.lazySet(index, null);
+                cache.onAccessLocked(node);
+                head++;
+            }
+            mReadCount = head;
+        }
+    }
+}
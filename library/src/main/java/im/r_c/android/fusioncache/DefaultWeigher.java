@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.r_c.android.fusioncache.util.MemoryUtils;
+
+/**
+ * FusionCache
+ * <p>
+ * The {@link Weigher} used by {@link MemCache} by default.
+ * <p>
+ * Estimates sizes of the supported types from their structure
+ * without copying anything: strings by their char count, byte arrays
+ * by their length, bitmaps by their pixel buffers, and JSON by walking
+ * the tree once. Other {@link Serializable} objects can only be measured
+ * by serializing them, which is slow, so they are weighed by an estimate per class:
+ * the first value of a class is serialized, and after that only every
+ * {@value #SAMPLE_INTERVAL}th one, averaged into the estimate.
+ * Override {@link #weigh} for classes whose values vary much in size.
+ * <p>
+ * Subclass it to weigh your own types, and call {@code super} for the others.
+ */
+public class DefaultWeigher implements Weigher<Object> {
+    /**
+     * Rough size of an object header plus a reference to it.
+     */
+    private static final int OBJECT_OVERHEAD = 16;
+
+    /**
+     * Rough size of a String object and its char array, without the chars.
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * Values of a {@link Serializable} class weighed by its estimate per one serialized.
+     */
+    private static final int SAMPLE_INTERVAL = 64;
+
+    /**
+     * Estimated sizes of {@link Serializable} classes.
+     */
+    private final ConcurrentMap<Class<?>, Estimate> mEstimates = new ConcurrentHashMap<>();
+
+    @Override
+    public int weigh(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof String) {
+            return weighString((String) value);
+        } else if (value instanceof Bitmap) {
+            return weighBitmap((Bitmap) value);
+        } else if (value instanceof Drawable) {
+            return weighDrawable((Drawable) value);
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            return clamp(weighJSON(value));
+        } else if (value instanceof Serializable) {
+            return weighSerializable((Serializable) value);
+        }
+        return OBJECT_OVERHEAD;
+    }
+
+    private int weighSerializable(Serializable value) {
+        Class<?> clz = value.getClass();
+        Estimate estimate = mEstimates.get(clz);
+        if (estimate == null) {
+            Estimate measured = new Estimate(measure(value));
+            estimate = mEstimates.putIfAbsent(clz, measured);
+            if (estimate == null) {
+                return measured.size;
+            }
+        }
+        if (estimate.count.incrementAndGet() % SAMPLE_INTERVAL == 0) {
+            // Racing samples may lose one another, it's only an estimate anyway
+            estimate.size = (int) (((long) estimate.size + measure(value)) / 2);
+        }
+        return estimate.size;
+    }
+
+    private static int measure(Serializable value) {
+        return Math.max(MemoryUtils.sizeOf(value), 0);
+    }
+
+    private static int weighString(String value) {
+        return clamp(STRING_OVERHEAD + 2L * value.length());
+    }
+
+    private static int weighBitmap(Bitmap value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // A reused bitmap may own a larger buffer than its current size needs
+            return value.getAllocationByteCount();
+        }
+        return value.getByteCount();
+    }
+
+    private static int weighDrawable(Drawable value) {
+        if (value instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) value).getBitmap();
+            return bitmap == null ? OBJECT_OVERHEAD : OBJECT_OVERHEAD + weighBitmap(bitmap);
+        }
+        int width = value.getIntrinsicWidth();
+        int height = value.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            // Assume it's drawn from ARGB_8888 pixels of its intrinsic size
+            return clamp(OBJECT_OVERHEAD + 4L * width * height);
+        }
+        return OBJECT_OVERHEAD;
+    }
+
+    private static long weighJSON(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            long size = OBJECT_OVERHEAD;
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                // A map entry plus key and value
+                size += OBJECT_OVERHEAD + STRING_OVERHEAD + 2L * key.length() + weighJSON(object.opt(key));
+            }
+            return size;
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            long size = OBJECT_OVERHEAD;
+            for (int i = 0; i < array.length(); i++) {
+                size += 4 + weighJSON(array.opt(i));
+            }
+            return size;
+        } else if (value instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String) value).length();
+        }
+        // Numbers, booleans and JSONObject.NULL
+        return OBJECT_OVERHEAD;
+    }
+
+    private static int clamp(long size) {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    private static class Estimate {
+        volatile int size;
+
+        /**
+         * Values weighed by it.
+         */
+        final AtomicInteger count = new AtomicInteger();
+
+        Estimate(int size) {
+            this.size = size;
+        }
+    }
+}
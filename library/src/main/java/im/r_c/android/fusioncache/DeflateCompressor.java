@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * FusionCache
+ * <p>
+ * A {@link Compressor} using Deflate from {@code java.util.zip}.
+ */
+public class DeflateCompressor implements Compressor {
+    static final int ID = 1;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int mLevel;
+
+    public DeflateCompressor() {
+        // Most of the gain of higher levels, at a fraction of their time
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level 0 ~ 9, see {@link Deflater#setLevel(int)}.
+     */
+    public DeflateCompressor(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level should be in 0 ~ 9.");
+        }
+        mLevel = level;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(mLevel);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(length, BUFFER_SIZE));
+            byte[] buffer = new byte[Math.min(length + 64, BUFFER_SIZE)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                baos.write(buffer, 0, count);
+                if (baos.size() >= length) {
+                    // Doesn't shrink, give up early
+                    return null;
+                }
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(InputStream in, int originalLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            byte[] data = new byte[originalLength];
+            DataInputStream dis = new DataInputStream(new InflaterInputStream(in, inflater, BUFFER_SIZE));
+            dis.readFully(data);
+            return data;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateCompressor{" +
+                "level=" + mLevel +
+                '}';
+    }
+}
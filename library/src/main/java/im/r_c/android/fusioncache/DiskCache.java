@@ -79,6 +79,14 @@ public class DiskCache extends AbstractCache {
     private File mCacheDir;
 
     public DiskCache(File cacheDir, long maxCacheSize) {
+        this(cacheDir, maxCacheSize, null);
+    }
+
+    /**
+     * @param policy Chooses cache files to delete, or null for least recently used.
+     *               Keys it sees are hashed keys. Must not be shared with other caches.
+     */
+    public DiskCache(File cacheDir, long maxCacheSize, EvictionPolicy<String> policy) {
         if (cacheDir.exists() && cacheDir.isFile()) {
             throw new IllegalArgumentException("cacheDir is not a directory.");
         } else if (!cacheDir.exists()) {
@@ -89,7 +97,7 @@ public class DiskCache extends AbstractCache {
         }
 
         mCacheDir = cacheDir;
-        mCacheWrapper = new LruCacheWrapper<>(maxCacheSize, new LruCacheDelegate(mCacheDir));
+        mCacheWrapper = new LruCacheWrapper<>(maxCacheSize, new LruCacheDelegate(mCacheDir), policy);
 
         // Try to restore journal, aka the state of mCacheWrapper when last used
         List<LruCacheWrapper.Entry<String, ValueWrapper>> entryList = restoreJournal();
@@ -23,24 +23,44 @@ package im.r_c.android.fusioncache;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import im.r_c.android.fusioncache.util.BitmapUtils;
 import im.r_c.android.fusioncache.util.FileUtils;
@@ -54,6 +74,7 @@ import im.r_c.android.fusioncache.util.FileUtils;
  * manually.
  * <p>
  * A thread-safe class that provides disk cache functions.
+ * Operations on different keys may run in parallel.
  * <p>
  * Methods of this class may block while doing IO things.
  *
@@ -61,6 +82,27 @@ import im.r_c.android.fusioncache.util.FileUtils;
  */
 public class DiskCache2 extends AbstractCache {
 
+    /**
+     * Version of the cache directory layout, given to {@code DiskLruCache},
+     * which deletes caches written in other versions on opening.
+     * <p>
+     * Version 2 added {@link EntryHeader}.
+     */
+    private static final int APP_VERSION = 2;
+
+    private static final Executor OPEN_IN_BACKGROUND = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            new Thread(command, "DiskCache2-open").start();
+        }
+    };
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private static final int DEFAULT_MMAP_THRESHOLD = 64 * 1024;
+
+    private static final String SEGMENT_DIR_NAME = "segments";
+
     /**
      * The directory that stores cache files.
      * <p>
@@ -68,64 +110,1098 @@ public class DiskCache2 extends AbstractCache {
      */
     private File mCacheDir;
 
-    private DiskLruCache mDiskLruCache;
+    private final long mMaxCacheSize;
+
+    /**
+     * Null until {@link #mOpenTask} has opened it.
+     */
+    private volatile DiskLruCache mDiskLruCache;
+
+    /**
+     * Opens {@link #mDiskLruCache}, on a background thread
+     * if the cache is opened in background.
+     */
+    private final FutureTask<DiskCache2> mOpenTask;
+
+    /**
+     * Callbacks waiting for {@link #mOpenTask}, guarded by itself.
+     */
+    private final List<FusionCache.Callback<? super DiskCache2>> mReadyCallbacks = new ArrayList<>();
+
+    /**
+     * Writes and removes made while the cache is being opened, by hash key,
+     * applied once it's opened. An entry stays here until it's applied,
+     * so that reads meanwhile still find it.
+     * <p>
+     * Guarded by itself, so are the fields below.
+     */
+    private final LinkedHashMap<String, PendingWrite> mPendingWrites = new LinkedHashMap<>();
+
+    /**
+     * Whether {@link #clear()} was called while the cache is being opened,
+     * and hasn't been applied yet.
+     */
+    private boolean mClearPending;
+
+    /**
+     * The opened cache while the pending writes are being applied to it,
+     * before it's set to {@link #mDiskLruCache}.
+     */
+    private DiskLruCache mApplyingTo;
+
+    private boolean mOpenFailed;
+
+    /**
+     * The opened cache, set before the pending writes are applied to it,
+     * so that it's configured before anything is written.
+     * Guarded by this cache, so are the fields below.
+     */
+    private DiskLruCache mOpenedDiskLruCache;
+
+    /**
+     * Durability set before opening, applied once opened. 0 for the default.
+     */
+    private int mDurability;
+
+    /**
+     * Max size of {@link #mSegmentStore} requested by {@link #enableSegmentStore},
+     * 0 if not requested.
+     */
+    private long mSegmentMaxSize;
+
+    /**
+     * Serializes operations on the same key,
+     * because {@code DiskLruCache} allows only one editor per entry.
+     */
+    private final KeyLockStripes mKeyLocks = new KeyLockStripes();
+
+    /**
+     * Converts values to bytes and back.
+     */
+    private final CodecRegistry mCodecs = new CodecRegistry();
+
+    /**
+     * Compressors that entries can be read with, by id.
+     */
+    private final ConcurrentMap<Integer, Compressor> mCompressors = new ConcurrentHashMap<>();
+
+    /**
+     * Compressor for values put afterwards, null if compression is disabled.
+     */
+    private volatile Compressor mCompressor;
+
+    /**
+     * Encoded values shorter than this are never compressed.
+     */
+    private volatile int mCompressionThreshold;
+
+    /**
+     * Values no shorter than this are memory-mapped by {@link #getByteBuffer(String)}.
+     */
+    private volatile int mMmapThreshold = DEFAULT_MMAP_THRESHOLD;
+
+    /**
+     * Buffers for encoding and reading values.
+     */
+    private volatile ByteArrayPool mByteArrayPool = ByteArrayPool.getDefault();
+
+    /**
+     * Bitmaps to decode into, null if disabled.
+     */
+    private volatile BitmapPool mBitmapPool;
+
+    /**
+     * Store of entries no longer than {@link #mSegmentCutoff}, null if disabled
+     * and there's no store left by an earlier session. Such a store is still read,
+     * and removed from, while disabled, but nothing new is put into it.
+     * An entry is in either this or {@link #mDiskLruCache}, never both.
+     */
+    private volatile SegmentStore mSegmentStore;
+    private volatile int mSegmentCutoff;
+
+    public DiskCache2(File cacheDir, long maxCacheSize) {
+        this(cacheDir, maxCacheSize, false);
+    }
+
+    /**
+     * @param openInBackground Whether to read the journal and check the cache files
+     *                         on a background thread and return right away,
+     *                         instead of doing it here. Until it's opened,
+     *                         writes and removes are queued in memory and applied afterwards,
+     *                         and reads only find what's queued, see {@link #isReady()}.
+     */
+    public DiskCache2(File cacheDir, long maxCacheSize, boolean openInBackground) {
+        this(cacheDir, maxCacheSize, openInBackground ? OPEN_IN_BACKGROUND : null);
+    }
+
+    /**
+     * @param openExecutor Runs the opening, or null to open here.
+     */
+    DiskCache2(final File cacheDir, final long maxCacheSize, Executor openExecutor) {
+        if (cacheDir.exists() && cacheDir.isFile()) {
+            throw new IllegalArgumentException("cacheDir is not a directory.");
+        }
+
+        mCacheDir = cacheDir;
+        mMaxCacheSize = maxCacheSize;
+
+        Compressor deflate = new DeflateCompressor();
+        mCompressors.put(deflate.id(), deflate);
+
+        mOpenTask = new FutureTask<DiskCache2>(new Callable<DiskCache2>() {
+            @Override
+            public DiskCache2 call() throws Exception {
+                DiskLruCache diskLruCache;
+                try {
+                    diskLruCache = DiskLruCache.open(cacheDir, APP_VERSION, 1, maxCacheSize,
+                            DiskLruCache.JOURNAL_BINARY);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (mPendingWrites) {
+                        // Nowhere to apply them
+                        mPendingWrites.clear();
+                        mClearPending = false;
+                        mOpenFailed = true;
+                    }
+                    throw e;
+                }
+                synchronized (DiskCache2.this) {
+                    if (mDurability != 0) {
+                        diskLruCache.setDurability(mDurability);
+                    }
+                    if (mSegmentMaxSize > 0) {
+                        openSegmentStore();
+                    } else {
+                        openDisabledSegmentStore();
+                    }
+                    mOpenedDiskLruCache = diskLruCache;
+                }
+                applyPendingWrites(diskLruCache);
+                return DiskCache2.this;
+            }
+        }) {
+            @Override
+            protected void done() {
+                List<FusionCache.Callback<? super DiskCache2>> callbacks;
+                synchronized (mReadyCallbacks) {
+                    callbacks = new ArrayList<>(mReadyCallbacks);
+                    mReadyCallbacks.clear();
+                }
+                for (FusionCache.Callback<? super DiskCache2> callback : callbacks) {
+                    notifyReady(callback);
+                }
+            }
+        };
+
+        if (openExecutor != null) {
+            openExecutor.execute(mOpenTask);
+        } else {
+            mOpenTask.run();
+            if (mDiskLruCache == null) {
+                throw new RuntimeException("Open DiskLruCache failed.");
+            }
+        }
+    }
+
+    /**
+     * Whether the cache is opened, so that operations won't wait for it.
+     */
+    public boolean isReady() {
+        return mDiskLruCache != null;
+    }
+
+    /**
+     * Get notified when the cache is opened.
+     * <p>
+     * {@code callback} is called on the thread opening the cache,
+     * or on the calling thread if it's opened already.
+     *
+     * @param callback Called with this cache once it's opened, or the error if opening failed.
+     *                 May be null.
+     * @return A future of this cache, done once it's opened.
+     */
+    public Future<DiskCache2> whenReady(FusionCache.Callback<? super DiskCache2> callback) {
+        if (callback != null) {
+            synchronized (mReadyCallbacks) {
+                if (!mOpenTask.isDone()) {
+                    mReadyCallbacks.add(callback);
+                    return mOpenTask;
+                }
+            }
+            notifyReady(callback);
+        }
+        return mOpenTask;
+    }
+
+    private void notifyReady(FusionCache.Callback<? super DiskCache2> callback) {
+        DiskCache2 result;
+        try {
+            result = mOpenTask.get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException | CancellationException e) {
+            // Can't happen, the task is done and never cancelled
+            return;
+        }
+        callback.onSuccess(result);
+    }
+
+    /**
+     * Apply the writes queued while the cache was being opened,
+     * then set {@link #mDiskLruCache} once there are none left.
+     */
+    private void applyPendingWrites(DiskLruCache diskLruCache) {
+        synchronized (mPendingWrites) {
+            mApplyingTo = diskLruCache;
+        }
+        while (true) {
+            LinkedHashMap<String, PendingWrite> writes;
+            boolean clear;
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.isEmpty() && !mClearPending) {
+                    mDiskLruCache = diskLruCache;
+                    mApplyingTo = null;
+                    return;
+                }
+                writes = new LinkedHashMap<>(mPendingWrites);
+                clear = mClearPending;
+            }
+
+            if (clear) {
+                KeyLockStripes.Stripe[] stripes = mKeyLocks.all();
+                for (KeyLockStripes.Stripe stripe : stripes) {
+                    stripe.lock();
+                }
+                try {
+                    clearLocked();
+                    synchronized (mPendingWrites) {
+                        mClearPending = false;
+                    }
+                } finally {
+                    for (KeyLockStripes.Stripe stripe : stripes) {
+                        stripe.unlock();
+                    }
+                }
+                // Writes taken above may be older than the clear, take them again
+                continue;
+            }
+
+            for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                String hashKey = entry.getKey();
+                PendingWrite write = entry.getValue();
+                KeyLockStripes.Stripe stripe = mKeyLocks.forKey(hashKey);
+                stripe.lock();
+                try {
+                    if (write.head != null) {
+                        putLocked(diskLruCache, hashKey, write.head, write.payload, write.payload.length);
+                    } else {
+                        removeLocked(diskLruCache, hashKey);
+                    }
+                    synchronized (mPendingWrites) {
+                        // Unless replaced by a newer one meanwhile
+                        if (mPendingWrites.get(hashKey) == write) {
+                            mPendingWrites.remove(hashKey);
+                        }
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue {@code write} of {@code hashKey} if the cache is still being opened.
+     * Called while holding the key's stripe.
+     *
+     * @return The opened cache to write into instead,
+     * or null if it's queued or opening failed.
+     */
+    private DiskLruCache deferWrite(String hashKey, PendingWrite write) {
+        synchronized (mPendingWrites) {
+            if (mDiskLruCache != null) {
+                return mDiskLruCache;
+            }
+            if (!mOpenFailed) {
+                // Moved to the end, so that it's applied in order
+                mPendingWrites.remove(hashKey);
+                mPendingWrites.put(hashKey, write);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Find where to read {@code hashKey} from while the cache is being opened.
+     * Called while holding the key's stripe.
+     *
+     * @return The queued write of it (with a null {@code head} if it's removed),
+     * or null to read it from {@link #mApplyingTo} if that's set, or miss otherwise.
+     */
+    private PendingWrite pendingWriteOf(String hashKey) {
+        synchronized (mPendingWrites) {
+            PendingWrite write = mPendingWrites.get(hashKey);
+            // Writes queued before the clear were dropped by it
+            return write == null && mClearPending ? PendingWrite.REMOVED : write;
+        }
+    }
+
+    /**
+     * The cache to read a key without a pending write from, while holding its stripe.
+     *
+     * @return {@link #mDiskLruCache}, or the cache the pending writes are being applied to,
+     * or null if the cache isn't opened yet.
+     */
+    private DiskLruCache readableDiskLruCache() {
+        DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            return diskLruCache;
+        }
+        synchronized (mPendingWrites) {
+            return mDiskLruCache != null ? mDiskLruCache : mApplyingTo;
+        }
+    }
+
+    /**
+     * Wait until {@link #mDiskLruCache} is opened.
+     * Only for explicit flushes, other operations never wait for opening.
+     *
+     * @return It, or null if opening failed.
+     */
+    private DiskLruCache awaitOpen() {
+        DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            return diskLruCache;
+        }
+        try {
+            mOpenTask.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mDiskLruCache;
+    }
+
+    /**
+     * Register a {@link Codec} to store values of {@code clz},
+     * see {@link CodecRegistry#register}.
+     */
+    public <T> void registerCodec(Class<T> clz, Codec<T> codec) {
+        mCodecs.register(clz, codec);
+    }
+
+    /**
+     * Set how bitmaps and drawables put afterwards are encoded,
+     * PNG by default. Values already stored stay readable.
+     */
+    public void setBitmapEncoding(BitmapCodec codec) {
+        mCodecs.register(Bitmap.class, codec);
+        mCodecs.register(Drawable.class, Codecs.drawable(codec));
+    }
+
+    /**
+     * Compress encoded values no shorter than {@code threshold} bytes
+     * with {@code compressor} when they are put afterwards,
+     * disabled by default. A value is stored compressed only if that makes it smaller.
+     * <p>
+     * Entries compressed by any compressor ever set here (or by the built-in
+     * {@link DeflateCompressor}) stay readable, so pass the same compressor
+     * after reopening a cache written with a custom one.
+     *
+     * @param compressor Compressor to use, or null to disable compression.
+     */
+    public void setCompression(Compressor compressor, int threshold) {
+        if (compressor != null) {
+            int id = compressor.id();
+            if (id < 1 || id > 255) {
+                throw new IllegalArgumentException("Compressor id should be in 1 ~ 255.");
+            }
+            mCompressors.put(id, compressor);
+        }
+        mCompressionThreshold = Math.max(threshold, 0);
+        mCompressor = compressor;
+    }
+
+    /**
+     * Set how soon the journal records operations,
+     * see {@link DiskLruCache#setDurability(int)}.
+     * {@link DiskLruCache#DURABILITY_GROUP_COMMIT} by default,
+     * so operations don't wait for the journal to be written.
+     */
+    public synchronized void setDurability(int durability) {
+        if (durability != DiskLruCache.DURABILITY_SYNC && durability != DiskLruCache.DURABILITY_GROUP_COMMIT) {
+            throw new IllegalArgumentException("Unknown durability: " + durability);
+        }
+        if (mOpenedDiskLruCache != null) {
+            mOpenedDiskLruCache.setDurability(durability);
+        } else {
+            mDurability = durability;
+        }
+    }
+
+    /**
+     * Write journal records waiting for a group commit and trim the cache to its max size.
+     */
+    public void flush() {
+        DiskLruCache diskLruCache = awaitOpen();
+        if (diskLruCache == null) {
+            return;
+        }
+        try {
+            diskLruCache.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Store entries no longer than {@code sizeCutoff} bytes (after encoding and compression)
+     * appended into a few large segment files, instead of a file per entry.
+     * Many small values then cost neither an inode nor a journal record each.
+     * Larger entries, and values written by {@link #openOutputStream(String)},
+     * still have a file per entry.
+     * <p>
+     * Disabled by default. Entries put while it's enabled stay readable
+     * after reopening the cache without enabling it, they just stop being added to.
+     * If the cache is being opened in background, the store is opened with it.
+     *
+     * @param maxSize Max size of the small entries, in addition to {@link #maxSize()}.
+     */
+    public synchronized void enableSegmentStore(int sizeCutoff, long maxSize) {
+        if (mSegmentMaxSize > 0) {
+            return;
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize should be positive.");
+        }
+        mSegmentMaxSize = maxSize;
+        SegmentStore segmentStore = mSegmentStore;
+        if (segmentStore != null) {
+            // Left by an earlier session and opened disabled
+            try {
+                segmentStore.setMaxSize(maxSize);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (mOpenedDiskLruCache != null) {
+            openSegmentStore();
+        }
+        mSegmentCutoff = sizeCutoff;
+    }
+
+    /**
+     * Called while holding the lock of this cache.
+     */
+    private void openSegmentStore() {
+        try {
+            mSegmentStore = SegmentStore.open(new File(mCacheDir, SEGMENT_DIR_NAME), mSegmentMaxSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Open the store left by an earlier session that enabled it, if any,
+     * so that its entries aren't shadowed by or resurrected over what's
+     * put and removed while it's disabled.
+     * Called while holding the lock of this cache.
+     */
+    private void openDisabledSegmentStore() {
+        String[] segments = new File(mCacheDir, SEGMENT_DIR_NAME).list();
+        if (segments == null || segments.length == 0) {
+            return;
+        }
+        try {
+            // Nothing is added while disabled, so it never grows beyond what it has
+            mSegmentStore = SegmentStore.open(new File(mCacheDir, SEGMENT_DIR_NAME), Long.MAX_VALUE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Set the pool of buffers for encoding and reading values,
+     * {@link ByteArrayPool#getDefault()} by default.
+     */
+    public void setByteArrayPool(ByteArrayPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool can't be null.");
+        }
+        mByteArrayPool = pool;
+    }
+
+    public ByteArrayPool getByteArrayPool() {
+        return mByteArrayPool;
+    }
+
+    /**
+     * Set the pool that bitmaps are decoded into when possible,
+     * with {@link BitmapCodec#decode(byte[], int, int, BitmapPool)}, disabled by default.
+     *
+     * @param pool The pool, or null to disable.
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * Set the length from which {@link #getByteBuffer(String)} maps values
+     * instead of copying them into the heap, 64 KB by default.
+     * Mapping has a fixed cost, so it only pays off for large values.
+     */
+    public void setMmapThreshold(int threshold) {
+        mMmapThreshold = Math.max(threshold, 0);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        put(key, (Object) value);
+    }
+
+    @Override
+    public void put(String key, JSONObject value) {
+        put(key, (Object) value);
+    }
+
+    @Override
+    public void put(String key, JSONArray value) {
+        put(key, (Object) value);
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        put(key, (Object) value);
+    }
+
+    @Override
+    public void put(String key, Bitmap value) {
+        put(key, (Object) value);
+    }
+
+    /**
+     * Put a bitmap encoded with {@code codec},
+     * instead of the encoding set by {@link #setBitmapEncoding}.
+     */
+    public void put(String key, Bitmap value, BitmapCodec codec) {
+        CodecRegistry.Registration<? super Bitmap> registration = mCodecs.registrationFor(Bitmap.class);
+        if (value != null && registration != null) {
+            putEncoded(key, value, registration.typeId, codec);
+        }
+    }
+
+    @Override
+    public void put(String key, Drawable value) {
+        put(key, (Object) value);
+    }
+
+    @Override
+    public void put(String key, Serializable value) {
+        put(key, (Object) value);
+    }
+
+    /**
+     * The ultimate {@code put} method.
+     * <p>
+     * Any other {@code put} methods will finally call this one
+     * to encode the value with the {@link Codec} registered for its class
+     * and store the bytes into the disk, after an {@link EntryHeader}.
+     * Values without a codec are ignored.
+     */
+    @SuppressWarnings("unchecked")
+    public void put(String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        CodecRegistry.Registration<Object> registration =
+                (CodecRegistry.Registration<Object>) mCodecs.registrationFor(value.getClass());
+        if (registration == null) {
+            return;
+        }
+        putEncoded(key, value, registration.typeId, registration.codec);
+    }
+
+    /**
+     * Encode {@code value} with {@code codec} and store it as type {@code typeId}.
+     */
+    private <T> void putEncoded(String key, T value, int typeId, Codec<? super T> codec) {
+        PoolingByteArrayOutputStream pooled = null;
+        try {
+            byte[] bytes;
+            int length;
+            if (codec instanceof BufferCodec) {
+                // Encode into a pooled buffer, without growing copies or a final exact-length copy
+                pooled = new PoolingByteArrayOutputStream(mByteArrayPool);
+                Codecs.encodeTo(codec, value, pooled);
+                bytes = pooled.getBuffer();
+                length = pooled.size();
+            } else {
+                bytes = codec.encode(value);
+                if (bytes == null) {
+                    return;
+                }
+                length = bytes.length;
+            }
+
+            byte[] payload = bytes;
+            int payloadLength = length;
+            int flags = 0;
+            Compressor compressor = mCompressor;
+            if (compressor != null && length >= mCompressionThreshold) {
+                byte[] compressed = null;
+                try {
+                    compressed = compressor.compress(bytes, 0, length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                // One more byte for the compressor id
+                if (compressed != null && compressed.length + 1 < length) {
+                    payload = compressed;
+                    payloadLength = compressed.length;
+                    flags |= EntryHeader.FLAG_COMPRESSED;
+                }
+            }
+
+            byte[] head = new EntryHeader(flags, typeId, codec.version(), length).toBytes();
+            if ((flags & EntryHeader.FLAG_COMPRESSED) != 0) {
+                head = Arrays.copyOf(head, EntryHeader.SIZE + 1);
+                head[EntryHeader.SIZE] = (byte) compressor.id();
+            }
+            if (head.length + (long) payloadLength > mMaxCacheSize) {
+                // Value size is bigger than max cache size
+                return;
+            }
+
+            // Get the hash value of the key
+            // Never use the parameter "key" below
+            String hashKey = hashKeyForDisk(key);
+
+            KeyLockStripes.Stripe stripe = mKeyLocks.forKey(hashKey);
+            stripe.lock();
+            try {
+                DiskLruCache diskLruCache = mDiskLruCache;
+                if (diskLruCache == null) {
+                    // Copied, the payload may be a pooled buffer
+                    diskLruCache = deferWrite(hashKey,
+                            new PendingWrite(head, Arrays.copyOf(payload, payloadLength)));
+                }
+                if (diskLruCache != null) {
+                    putLocked(diskLruCache, hashKey, head, payload, payloadLength);
+                }
+            } finally {
+                stripe.unlock();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (pooled != null) {
+                pooled.release();
+            }
+        }
+    }
+
+    /**
+     * @param head Header, followed by the compressor id if compressed.
+     */
+    private void putLocked(DiskLruCache diskLruCache, String hashKey,
+                           byte[] head, byte[] payload, int payloadLength) {
+        SegmentStore segmentStore = mSegmentStore;
+        if (segmentStore != null && head.length + payloadLength <= mSegmentCutoff) {
+            try {
+                segmentStore.put(hashKey, head, payload, payloadLength);
+                diskLruCache.remove(hashKey);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        DiskLruCache.Editor editor = null;
+        OutputStream out = null;
+        try {
+            editor = diskLruCache.edit(hashKey);
+            if (editor == null) {
+                // Being edited by someone else outside this class
+                return;
+            }
+            out = editor.newOutputStream(0);
+            out.write(head);
+            out.write(payload, 0, payloadLength);
+            out.flush();
+            editor.commit();
+            if (segmentStore != null) {
+                segmentStore.remove(hashKey);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getString(String key) {
+        return get(key, String.class);
+    }
+
+    @Override
+    public JSONObject getJSONObject(String key) {
+        return get(key, JSONObject.class);
+    }
+
+    @Override
+    public JSONArray getJSONArray(String key) {
+        return get(key, JSONArray.class);
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        return get(key, byte[].class);
+    }
+
+    @Override
+    public Bitmap getBitmap(String key) {
+        return get(key, Bitmap.class);
+    }
+
+    /**
+     * @deprecated Use {@code getDrawable(String, Resources)} instead.
+     */
+    @Deprecated
+    @Override
+    public Drawable getDrawable(String key) {
+        return get(key, Drawable.class);
+    }
+
+    public Drawable getDrawable(String key, Resources res) {
+        Drawable drawable = get(key, Drawable.class);
+        if (res != null && drawable instanceof BitmapDrawable) {
+            // Decoded without resources, wrap it again to get the right density
+            return BitmapUtils.bitmapToDrawable(((BitmapDrawable) drawable).getBitmap(), res);
+        }
+        return drawable;
+    }
+
+    @Override
+    public Serializable getSerializable(String key) {
+        return get(key, Serializable.class);
+    }
+
+    /**
+     * Get a value of any type, decoded by the type stored with it.
+     */
+    public Object get(String key) {
+        return get(key, Object.class);
+    }
+
+    /**
+     * The ultimate {@code get} method.
+     * <p>
+     * Any other {@code get} methods will finally call this one
+     * to read the bytes and decode them with the {@link Codec}
+     * of the type stored in the entry's {@link EntryHeader}.
+     * <p>
+     * If {@code clz} has a codec, an entry stored as another type
+     * is rejected from its header, without reading or decoding it.
+     *
+     * @return The value, or null if it's missing, can't be decoded, or isn't of class {@code clz}.
+     */
+    public <T> T get(String key, Class<T> clz) {
+        // Null for classes like Object, then any stored type is decoded and checked
+        CodecRegistry.Registration<?> expected = mCodecs.registrationFor(clz);
+
+        // Get the hash value of the key
+        // Never use the parameter "key" below
+        String hashKey = hashKeyForDisk(key);
+
+        StoredValue stored;
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(hashKey);
+        stripe.lock();
+        try {
+            stored = readLocked(hashKey, expected);
+        } finally {
+            stripe.unlock();
+        }
+        if (stored == null) {
+            return null;
+        }
+
+        Object result;
+        try {
+            Codec<?> codec = stored.registration.codec;
+            BitmapPool bitmapPool = mBitmapPool;
+            if (bitmapPool != null && codec instanceof BitmapCodec) {
+                result = ((BitmapCodec) codec).decode(stored.bytes, 0, stored.length, bitmapPool);
+            } else {
+                result = Codecs.decodeFrom(codec, stored.bytes, 0, stored.length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (stored.pooled) {
+                mByteArrayPool.release(stored.bytes);
+            }
+        }
+        return clz.isInstance(result) ? clz.cast(result) : null;
+    }
+
+    /**
+     * Read an entry, checking its header.
+     * Entries in an unknown format or written by another version of their codec
+     * are removed, since they'll never be readable.
+     *
+     * @param expected Registration the entry must be stored with, or null for any.
+     * @return The entry, or null if it's missing, unreadable, or stored with another registration.
+     */
+    private StoredValue readLocked(String hashKey, CodecRegistry.Registration<?> expected) {
+        DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache == null) {
+            PendingWrite write = pendingWriteOf(hashKey);
+            if (write != null) {
+                return readPendingWrite(write, expected);
+            }
+            diskLruCache = readableDiskLruCache();
+            if (diskLruCache == null) {
+                // Not opened yet, a miss rather than waiting for it
+                return null;
+            }
+        }
+        SegmentStore segmentStore = mSegmentStore;
+        if (segmentStore != null) {
+            SegmentStore.Value value = null;
+            try {
+                value = segmentStore.get(hashKey, mByteArrayPool);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (value != null) {
+                return readSegmentValue(hashKey, value, expected);
+            }
+        }
+
+        DiskLruCache.Snapshot snapshot = null;
+        DataInputStream in = null;
+        StoredValue result = null;
+        boolean stale = false;
+        try {
+            snapshot = diskLruCache.get(hashKey);
+            if (snapshot != null) {
+                InputStream raw = snapshot.getInputStream(0);
+                in = new DataInputStream(new BufferedInputStream(raw, EntryHeader.SIZE));
+                EntryHeader header = EntryHeader.read(in);
+                CodecRegistry.Registration<?> registration = null;
+                if (header == null) {
+                    stale = true;
+                } else if (expected == null || header.typeId == expected.typeId) {
+                    // Otherwise it's stored as another type, don't bother reading it
+                    registration = mCodecs.registrationFor(header.typeId);
+                    if (registration != null && header.codecVersion != registration.codec.version()) {
+                        stale = true;
+                        registration = null;
+                    }
+                }
+                if (registration != null) {
+                    result = readPayload(in, header, entryLength(raw, snapshot), registration);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
 
-    public DiskCache2(File cacheDir, long maxCacheSize) {
-        if (cacheDir.exists() && cacheDir.isFile()) {
-            throw new IllegalArgumentException("cacheDir is not a directory.");
+        if (stale) {
+            try {
+                diskLruCache.remove(hashKey);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        return result;
+    }
 
+    /**
+     * Same as reading an entry of {@link #mDiskLruCache} in {@link #readLocked},
+     * for an entry of {@link #mSegmentStore}.
+     */
+    private StoredValue readSegmentValue(String hashKey, SegmentStore.Value value,
+                                         CodecRegistry.Registration<?> expected) {
+        StoredValue result = null;
+        boolean stale = false;
         try {
-            mDiskLruCache = DiskLruCache.open(cacheDir, 1, 1, maxCacheSize);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(value.bytes, value.offset, value.length));
+            EntryHeader header = EntryHeader.read(in);
+            CodecRegistry.Registration<?> registration = null;
+            if (header == null) {
+                stale = true;
+            } else if (expected == null || header.typeId == expected.typeId) {
+                registration = mCodecs.registrationFor(header.typeId);
+                if (registration != null && header.codecVersion != registration.codec.version()) {
+                    stale = true;
+                    registration = null;
+                }
+            }
+            if (registration != null) {
+                result = readPayload(in, header, value.length, registration);
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Open DiskLruCache failed.");
+            e.printStackTrace();
+        } finally {
+            mByteArrayPool.release(value.bytes);
         }
 
-        mCacheDir = cacheDir;
+        if (stale) {
+            try {
+                mSegmentStore.remove(hashKey);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
     }
 
-    @Override
-    public void put(String key, String value) {
-        put(key, value.getBytes());
+    /**
+     * Same as reading an entry in {@link #readLocked}, for a write not applied yet.
+     */
+    private StoredValue readPendingWrite(PendingWrite write, CodecRegistry.Registration<?> expected) {
+        if (write.head == null) {
+            // Removed
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new SequenceInputStream(
+                    new ByteArrayInputStream(write.head), new ByteArrayInputStream(write.payload)));
+            EntryHeader header = EntryHeader.read(in);
+            if (header == null || (expected != null && header.typeId != expected.typeId)) {
+                return null;
+            }
+            CodecRegistry.Registration<?> registration = mCodecs.registrationFor(header.typeId);
+            if (registration == null || header.codecVersion != registration.codec.version()) {
+                return null;
+            }
+            return readPayload(in, header, write.head.length + write.payload.length, registration);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
-    @Override
-    public void put(String key, JSONObject value) {
-        put(key, value.toString());
+    /**
+     * Length of the entry file {@code in} reads.
+     * <p>
+     * Taken from the file itself, since the length recorded in the journal
+     * may be of an older value if a crash lost the record of the latest one.
+     */
+    private static long entryLength(InputStream in, DiskLruCache.Snapshot snapshot) throws IOException {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel().size();
+        }
+        return snapshot.getLength(0);
     }
 
-    @Override
-    public void put(String key, JSONArray value) {
-        put(key, value.toString());
+    /**
+     * Read the payload after {@code header}, decompressing it if needed.
+     * <p>
+     * It's read into a pooled buffer if the codec of {@code registration} can decode from one.
+     *
+     * @return The payload as encoded by the codec, or null if it's compressed by an unknown compressor.
+     */
+    private StoredValue readPayload(DataInputStream in, EntryHeader header, long entryLength,
+                                    CodecRegistry.Registration<?> registration) throws IOException {
+        if (header.isCompressed()) {
+            Compressor compressor = mCompressors.get(in.readUnsignedByte());
+            if (compressor == null) {
+                // Maybe readable after the compressor is set again, keep it
+                return null;
+            }
+            byte[] bytes = compressor.decompress(in, header.length);
+            return new StoredValue(registration, bytes, bytes.length, false);
+        }
+
+        long length = header.length != EntryHeader.UNKNOWN_LENGTH
+                ? header.length : entryLength - EntryHeader.SIZE;
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        if (!(registration.codec instanceof BufferCodec)) {
+            // The array may be the decoded value itself, like a byte[]
+            byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            return new StoredValue(registration, bytes, bytes.length, false);
+        }
+        byte[] bytes = mByteArrayPool.acquire((int) length);
+        try {
+            in.readFully(bytes, 0, (int) length);
+        } catch (IOException e) {
+            mByteArrayPool.release(bytes);
+            throw e;
+        }
+        return new StoredValue(registration, bytes, (int) length, true);
     }
 
     /**
-     * The ultimate {@code put} method.
+     * Open a stream to write a value of type {@code byte[]} directly to the disk,
+     * without holding all of it in memory.
      * <p>
-     * Any other {@code put} methods will finally call this one
-     * to actually store byte array into the disk.
+     * The value replaces the old one when the stream is closed,
+     * unless {@link EntryOutputStream#abort()} is called or writing failed.
+     * The stream is not thread-safe, and isn't checked against the max cache size,
+     * oversize values are evicted right after closing.
+     * Other writes to the key are ignored while it's open.
+     *
+     * @return The stream, or null if the key is being written by another stream, an error occurred,
+     * or the cache is still being opened, see {@link #isReady()}.
      */
-    @Override
-    public synchronized void put(String key, byte[] value) {
-        int valueSize = value.length;
-        if (valueSize > maxSize()) {
-            // Value size is bigger than max cache size
-            return;
+    public EntryOutputStream openOutputStream(String key) {
+        CodecRegistry.Registration<? super byte[]> registration = mCodecs.registrationFor(byte[].class);
+        if (registration == null) {
+            return null;
         }
+        EntryHeader header = new EntryHeader(0, registration.typeId,
+                registration.codec.version(), EntryHeader.UNKNOWN_LENGTH);
 
         // Get the hash value of the key
         // Never use the parameter "key" below
         String hashKey = hashKeyForDisk(key);
 
+        DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache == null) {
+            // Can't be queued like other writes
+            return null;
+        }
+
         DiskLruCache.Editor editor = null;
-        OutputStream out = null;
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(hashKey);
+        stripe.lock();
         try {
-            editor = mDiskLruCache.edit(hashKey);
-            out = editor.newOutputStream(0);
-            out.write(value);
-            out.flush();
-            editor.commit();
-            mDiskLruCache.flush();
+            editor = diskLruCache.edit(hashKey);
+            if (editor == null) {
+                return null;
+            }
+            OutputStream out = new BufferedOutputStream(editor.newOutputStream(0), STREAM_BUFFER_SIZE);
+            out.write(header.toBytes());
+            return new EntryOutputStream(out, editor, hashKey, mSegmentStore);
         } catch (IOException e) {
             e.printStackTrace();
             if (editor != null) {
@@ -134,226 +1210,400 @@ public class DiskCache2 extends AbstractCache {
                 } catch (IOException ignored) {
                 }
             }
+            return null;
         } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException ignored) {
-                }
-            }
+            stripe.unlock();
         }
     }
 
-    @Override
-    public void put(String key, Bitmap value) {
-        put(key, BitmapUtils.bitmapToBytes(value));
+    /**
+     * Same as {@link #openOutputStream(String)}, as a channel.
+     * Writes can't be aborted through the channel, use the stream for that.
+     */
+    public WritableByteChannel openWritableChannel(String key) {
+        EntryOutputStream out = openOutputStream(key);
+        return out != null ? Channels.newChannel(out) : null;
     }
 
-    @Override
-    public void put(String key, Drawable value) {
-        put(key, BitmapUtils.drawableToBitmap(value));
-    }
+    /**
+     * Open a stream to read a value of type {@code byte[]} directly from the disk,
+     * without holding all of it in memory.
+     * <p>
+     * The stream is unbuffered, and reads the value as it was
+     * when opened even if it's replaced meanwhile. Close it after use.
+     *
+     * @return The stream, or null if the value is missing or isn't a {@code byte[]}.
+     */
+    public InputStream openInputStream(String key) {
+        CodecRegistry.Registration<? super byte[]> expected = mCodecs.registrationFor(byte[].class);
+        if (expected == null) {
+            return null;
+        }
 
-    @Override
-    public void put(String key, Serializable value) {
-        ByteArrayOutputStream baos = null;
-        ObjectOutputStream oos = null;
+        // Get the hash value of the key
+        // Never use the parameter "key" below
+        String hashKey = hashKeyForDisk(key);
+
+        DiskLruCache diskLruCache = mDiskLruCache;
+        DiskLruCache.Snapshot snapshot = null;
+        boolean handedOut = false;
+        boolean stale = false;
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(hashKey);
+        stripe.lock();
         try {
-            baos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(baos);
-            oos.writeObject(value);
-            byte[] byteArray = baos.toByteArray();
-            put(key, byteArray);
+            if (diskLruCache == null) {
+                PendingWrite write = pendingWriteOf(hashKey);
+                if (write != null) {
+                    StoredValue stored = readPendingWrite(write, expected);
+                    return stored != null ? new ByteArrayInputStream(stored.bytes, 0, stored.length) : null;
+                }
+                diskLruCache = readableDiskLruCache();
+                if (diskLruCache == null) {
+                    // Not opened yet, a miss rather than waiting for it
+                    return null;
+                }
+            }
+
+            SegmentStore segmentStore = mSegmentStore;
+            if (segmentStore != null) {
+                SegmentStore.Value value = segmentStore.get(hashKey, mByteArrayPool);
+                if (value != null) {
+                    // Small, read as a whole
+                    StoredValue stored = readSegmentValue(hashKey, value, expected);
+                    if (stored == null) {
+                        return null;
+                    }
+                    byte[] bytes = stored.bytes;
+                    if (stored.pooled) {
+                        bytes = Arrays.copyOf(stored.bytes, stored.length);
+                        mByteArrayPool.release(stored.bytes);
+                    }
+                    return new ByteArrayInputStream(bytes, 0, stored.length);
+                }
+            }
+
+            snapshot = diskLruCache.get(hashKey);
+            if (snapshot == null) {
+                return null;
+            }
+            InputStream in = snapshot.getInputStream(0);
+            EntryHeader header = EntryHeader.readUnbuffered(in);
+            if (header == null || header.typeId != expected.typeId) {
+                stale = header == null;
+                return null;
+            }
+            if (header.codecVersion != expected.codec.version()) {
+                stale = true;
+                return null;
+            }
+            if (header.isCompressed()) {
+                // Never large, since it was put as a whole
+                StoredValue stored = readPayload(new DataInputStream(in), header, entryLength(in, snapshot), expected);
+                return stored != null ? new ByteArrayInputStream(stored.bytes, 0, stored.length) : null;
+            }
+            // Closing it closes the snapshot
+            handedOut = true;
+            return in;
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         } finally {
-            if (baos != null) {
-                try {
-                    baos.close();
-                } catch (IOException ignored) {
-                }
+            if (snapshot != null && !handedOut) {
+                snapshot.close();
             }
-            if (oos != null) {
+            if (stale) {
                 try {
-                    oos.close();
-                } catch (IOException ignored) {
+                    diskLruCache.remove(hashKey);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
+            stripe.unlock();
         }
     }
 
-    @Override
-    public String getString(String key) {
-        byte[] byteArray = getBytes(key);
-        if (byteArray == null) {
-            return null;
+    /**
+     * Same as {@link #openInputStream(String)}, as a channel.
+     * <p>
+     * For uncompressed values it's a {@link java.nio.channels.FileChannel}
+     * positioned at the beginning of the value,
+     * which can be transferred without copying through the heap.
+     */
+    public ReadableByteChannel openReadableChannel(String key) {
+        InputStream in = openInputStream(key);
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
         }
-        return new String(byteArray);
+        return in != null ? Channels.newChannel(in) : null;
     }
 
+    /**
+     * Always returns null, because for disk cache,
+     * any action that gets a value must specify the type of the value.
+     */
     @Override
-    public JSONObject getJSONObject(String key) {
-        String jsonString = getString(key);
-        if (jsonString == null) {
-            return null;
+    public Object remove(String key) {
+        // Get the hash value of the key
+        // Never use the parameter "key" below
+        String hashKey = hashKeyForDisk(key);
+
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(hashKey);
+        stripe.lock();
+        try {
+            DiskLruCache diskLruCache = mDiskLruCache;
+            if (diskLruCache == null) {
+                diskLruCache = deferWrite(hashKey, PendingWrite.REMOVED);
+            }
+            if (diskLruCache != null) {
+                removeLocked(diskLruCache, hashKey);
+            }
+        } finally {
+            stripe.unlock();
         }
-        JSONObject result = null;
+
+        return null;
+    }
+
+    private void removeLocked(DiskLruCache diskLruCache, String hashKey) {
         try {
-            result = new JSONObject(jsonString);
-        } catch (JSONException e) {
+            diskLruCache.remove(hashKey);
+            SegmentStore segmentStore = mSegmentStore;
+            if (segmentStore != null) {
+                segmentStore.remove(hashKey);
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return result;
     }
 
     @Override
-    public JSONArray getJSONArray(String key) {
-        String jsonString = getString(key);
-        if (jsonString == null) {
-            return null;
+    public void clear() {
+        synchronized (mPendingWrites) {
+            if (mDiskLruCache == null) {
+                // Don't delete files while they're being opened, clear once opened
+                if (!mOpenFailed) {
+                    mPendingWrites.clear();
+                    mClearPending = true;
+                }
+                return;
+            }
+        }
+
+        KeyLockStripes.Stripe[] stripes = mKeyLocks.all();
+        for (KeyLockStripes.Stripe stripe : stripes) {
+            stripe.lock();
         }
-        JSONArray result = null;
         try {
-            result = new JSONArray(jsonString);
-        } catch (JSONException e) {
-            e.printStackTrace();
+            clearLocked();
+        } finally {
+            for (KeyLockStripes.Stripe stripe : stripes) {
+                stripe.unlock();
+            }
         }
-        return result;
     }
 
     /**
-     * The ultimate {@code get} method.
-     * <p>
-     * Any other {@code get} methods will first call this one
-     * to get the primitive byte array and then convert to the type needed.
+     * Called while holding all the stripes.
      */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void clearLocked() {
+        SegmentStore segmentStore = mSegmentStore;
+        if (segmentStore != null) {
+            segmentStore.clear();
+        }
+        FileUtils.deleteFile(mCacheDir);
+    }
+
     @Override
-    public synchronized byte[] getBytes(String key) {
-        // Get the hash value of the key
-        // Never use the parameter "key" below
-        String hashKey = hashKeyForDisk(key);
+    public long size() {
+        DiskLruCache diskLruCache = mDiskLruCache;
+        SegmentStore segmentStore = mSegmentStore;
+        // Nothing is known before opening
+        return (diskLruCache != null ? diskLruCache.size() : 0)
+                + (segmentStore != null ? segmentStore.size() : 0);
+    }
 
-        DiskLruCache.Snapshot snapshot = null;
-        InputStream in = null;
-        byte[] byteArray = null;
+    @Override
+    public long maxSize() {
+        SegmentStore segmentStore = mSegmentStore;
+        // A disabled store only counts towards size(), until it's emptied
+        return mMaxCacheSize + (segmentStore != null && mSegmentCutoff > 0 ? segmentStore.maxSize() : 0);
+    }
+
+    /**
+     * Get a value of type {@code byte[]} as a buffer.
+     * <p>
+     * Uncompressed values no shorter than the threshold set by {@link #setMmapThreshold(int)}
+     * are memory-mapped read-only, so they are paged in lazily and never copied into the heap.
+     * The mapping stays valid after the value is replaced or removed,
+     * since entry files are replaced instead of written in place.
+     * <p>
+     * Other values are copied into a heap buffer from the {@link ByteArrayPool},
+     * which can be given back with {@link #releaseByteBuffer(ByteBuffer)} after use.
+     *
+     * @return The buffer, or null if the value is missing or isn't a {@code byte[]}.
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        InputStream in = openInputStream(key);
+        if (in == null) {
+            return null;
+        }
         try {
-            snapshot = mDiskLruCache.get(hashKey);
-            if (snapshot != null) {
-                in = snapshot.getInputStream(0);
-                byteArray = new byte[(int) FileUtils.getFileSize((FileInputStream) in)];
-                if (in.read(byteArray) < 0) {
-                    // Didn't read anything actually
-                    byteArray = null;
+            if (in instanceof FileInputStream) {
+                FileChannel channel = ((FileInputStream) in).getChannel();
+                long position = channel.position();
+                long length = channel.size() - position;
+                if (length >= mMmapThreshold) {
+                    // Mapped read-only, the mapping outlives the channel
+                    return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
                 }
-                mDiskLruCache.flush();
+                if (length > Integer.MAX_VALUE) {
+                    return null;
+                }
+                return readPooled(in, (int) length);
             }
+            // Decompressed in memory already
+            return readPooled(in, in.available());
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ignored) {
-                }
-            }
-            if (snapshot != null) {
-                snapshot.close();
+            try {
+                in.close();
+            } catch (IOException ignored) {
             }
         }
+    }
 
-        return byteArray;
+    /**
+     * Give back a buffer returned by {@link #getByteBuffer(String)} to the pool.
+     * It must not be used afterwards. Mapped buffers are simply ignored.
+     */
+    public void releaseByteBuffer(ByteBuffer buffer) {
+        if (buffer != null && buffer.hasArray() && !buffer.isReadOnly()) {
+            mByteArrayPool.release(buffer.array());
+        }
     }
 
-    @Override
-    public Bitmap getBitmap(String key) {
-        return BitmapUtils.bytesToBitmap(getBytes(key));
+    private ByteBuffer readPooled(InputStream in, int length) throws IOException {
+        ByteArrayPool pool = mByteArrayPool;
+        byte[] bytes = pool.acquire(length);
+        try {
+            new DataInputStream(in).readFully(bytes, 0, length);
+        } catch (IOException e) {
+            pool.release(bytes);
+            throw e;
+        }
+        // Sliced so that the buffer ends with the value
+        return ByteBuffer.wrap(bytes, 0, length).slice();
     }
 
     /**
-     * @deprecated Use {@code getDrawable(String, Resources)} instead.
+     * A stream writing a value into disk cache,
+     * returned by {@link #openOutputStream(String)}.
      */
-    @Deprecated
-    @Override
-    public Drawable getDrawable(String key) {
-        return BitmapUtils.bitmapToDrawable(getBitmap(key), null);
-    }
+    public static final class EntryOutputStream extends FilterOutputStream {
+        private final DiskLruCache.Editor mEditor;
+        private final String mHashKey;
 
-    public Drawable getDrawable(String key, Resources res) {
-        return BitmapUtils.bitmapToDrawable(getBitmap(key), res);
-    }
+        /**
+         * Where the old value may be instead, null if disabled.
+         */
+        private final SegmentStore mSegmentStore;
+        private boolean mDone;
 
-    @Override
-    public Serializable getSerializable(String key) {
-        byte[] byteArray = getBytes(key);
-        if (byteArray == null || byteArray.length == 0) {
-            return null;
+        private EntryOutputStream(OutputStream out, DiskLruCache.Editor editor,
+                                  String hashKey, SegmentStore segmentStore) {
+            super(out);
+            mEditor = editor;
+            mHashKey = hashKey;
+            mSegmentStore = segmentStore;
         }
 
-        ByteArrayInputStream bais = null;
-        ObjectInputStream ois = null;
-        Object result = null;
-        try {
-            bais = new ByteArrayInputStream(byteArray);
-            ois = new ObjectInputStream(bais);
-            result = ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            if (bais != null) {
-                try {
-                    bais.close();
-                } catch (IOException ignored) {
-                }
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // FilterOutputStream writes byte by byte
+            out.write(buffer, offset, length);
+        }
+
+        /**
+         * Discard what's written and keep the old value.
+         */
+        public void abort() throws IOException {
+            if (mDone) {
+                return;
             }
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException ignored) {
-                }
+            mDone = true;
+            try {
+                out.close();
+            } catch (IOException ignored) {
             }
+            mEditor.abort();
         }
 
-        if (result == null || !(result instanceof Serializable)) {
-            return null;
-        } else {
-            return (Serializable) result;
+        /**
+         * Commit what's written as the new value.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                mEditor.abort();
+                throw e;
+            }
+            mEditor.commit();
+            if (mSegmentStore != null) {
+                mSegmentStore.remove(mHashKey);
+            }
         }
     }
 
     /**
-     * Always returns null, because for disk cache,
-     * any action that gets a value must specify the type of the value.
+     * A write queued while the cache is being opened.
      */
-    @Override
-    public synchronized Object remove(String key) {
-        // Get the hash value of the key
-        // Never use the parameter "key" below
-        String hashKey = hashKeyForDisk(key);
+    private static class PendingWrite {
+        static final PendingWrite REMOVED = new PendingWrite(null, null);
 
-        try {
-            mDiskLruCache.remove(hashKey);
-            mDiskLruCache.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        /**
+         * Header followed by the compressor id if compressed, or null for a removal.
+         */
+        final byte[] head;
+        final byte[] payload;
 
-        return null;
+        PendingWrite(byte[] head, byte[] payload) {
+            this.head = head;
+            this.payload = payload;
+        }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    @Override
-    public synchronized void clear() {
-        FileUtils.deleteFile(mCacheDir);
-    }
+    /**
+     * Bytes of an entry, with the registration to decode them.
+     */
+    private static class StoredValue {
+        final CodecRegistry.Registration<?> registration;
+        final byte[] bytes;
 
-    @Override
-    public synchronized long size() {
-        return mDiskLruCache.size();
-    }
+        /**
+         * Of the payload, which {@code bytes} may be longer than.
+         */
+        final int length;
 
-    @Override
-    public synchronized long maxSize() {
-        return mDiskLruCache.maxSize();
+        /**
+         * Whether {@code bytes} is from {@link #mByteArrayPool} and should be released after decoding.
+         */
+        final boolean pooled;
+
+        StoredValue(CodecRegistry.Registration<?> registration, byte[] bytes, int length, boolean pooled) {
+            this.registration = registration;
+            this.bytes = bytes;
+            this.length = length;
+            this.pooled = pooled;
+        }
     }
 
     /**
@@ -17,14 +17,14 @@
 package im.r_c.android.fusioncache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,12 +40,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 /**
  * *****************************************************************************
@@ -91,6 +96,12 @@ import java.util.concurrent.TimeUnit;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  * <p>
+ * <p>Operations on different entries run in parallel. Each entry's files are
+ * guarded by a per-key lock, and the cache's monitor is only held for short
+ * updates of the in-memory index and journal appends. File opens, renames,
+ * deletes and length checks never happen while holding the monitor. Locks are
+ * always taken in the order key lock, then monitor.
+ * <p>
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -103,6 +114,49 @@ public final class DiskLruCache implements Closeable {
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
+
+    /**
+     * Journal formats, see {@link #open(File, int, int, long, int)}.
+     */
+    public static final int JOURNAL_TEXT = 1;
+    public static final int JOURNAL_BINARY = 2;
+
+    static final int BINARY_MAGIC = 0xD15C1A4E;
+    private static final byte RECORD_CLEAN = 1;
+    private static final byte RECORD_DIRTY = 2;
+    private static final byte RECORD_REMOVE = 3;
+    private static final byte RECORD_READ = 4;
+    /**
+     * Set in the type byte of a record whose key is 32 lowercase hex digits,
+     * stored as 16 bytes instead.
+     */
+    private static final int RECORD_HEX_KEY = 0x80;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Durability levels, see {@link #setDurability(int)}.
+     * <p>
+     * With {@code DURABILITY_SYNC} an operation writes its journal records
+     * to the file before it returns.
+     * <p>
+     * With {@code DURABILITY_GROUP_COMMIT} records are collected in memory and
+     * written in batches by a background thread, a short while after the first
+     * of them or once enough of them have piled up. A crash may lose the
+     * records of the last moment. Opening then cleans up after them: dirty
+     * files and files of keys the journal doesn't know are deleted, and entries
+     * whose files are gone (removed before the crash) are dropped.
+     */
+    public static final int DURABILITY_SYNC = 1;
+    public static final int DURABILITY_GROUP_COMMIT = 2;
+
+    static final long DEFAULT_GROUP_COMMIT_DELAY_MILLIS = 200;
+    static final int DEFAULT_GROUP_COMMIT_BYTES = 16 * 1024;
+
+    static final long DEFAULT_READ_CHECKPOINT_MILLIS = 10 * 1000;
+    /**
+     * Checkpoint reads early once this many keys are waiting.
+     */
+    private static final int MAX_UNLOGGED_READS = 512;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
@@ -142,13 +196,26 @@ public final class DiskLruCache implements Closeable {
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
      *     its values.
-     *   o READ lines track accesses for LRU.
+     *   o READ lines track accesses for LRU. They are written in batches by
+     *     access checkpoints, one per key read since the last checkpoint.
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The binary journal (JOURNAL_BINARY) records the same things, without
+     * parsing text on open or building strings on every operation. Its header
+     * is BINARY_MAGIC, the format version byte, the application's version and
+     * the value count, as big-endian ints. Each record is then:
+     *     type     1 byte, RECORD_* or'ed with RECORD_HEX_KEY
+     *     key      16 bytes if RECORD_HEX_KEY is set, otherwise a varint byte
+     *              length and the UTF-8 bytes
+     *     lengths  valueCount varints, CLEAN only
+     *     crc      4 bytes, CRC32 of the bytes above
+     * A record torn by a crash ends the journal, which is then rebuilt.
+     * Opening a cache whose journal is in the other format migrates it.
      */
 
     private final File directory;
@@ -157,12 +224,37 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final int journalFormat;
     private long size = 0;
-    private Writer journalWriter;
+    private JournalWriter journalWriter;
+
+    /**
+     * Set if the journal read on open ended with a torn record.
+     */
+    private boolean journalTorn;
+
+    private volatile int durability = DURABILITY_GROUP_COMMIT;
+    private volatile long groupCommitDelayMillis = DEFAULT_GROUP_COMMIT_DELAY_MILLIS;
+    private volatile int groupCommitBytes = DEFAULT_GROUP_COMMIT_BYTES;
+    private volatile long readCheckpointMillis = DEFAULT_READ_CHECKPOINT_MILLIS;
+
+    /**
+     * Keys read since the last access checkpoint, least recently read first.
+     * Reads only reorder {@link #lruEntries} in memory, the order reaches
+     * the journal by {@link #checkpointReads()}, one record per key.
+     */
+    private final LinkedHashSet<String> unloggedReads = new LinkedHashSet<String>();
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /**
+     * Per-key locks guarding the files and the state of entries. Held while
+     * touching the filesystem, so that a reader never sees a half-committed
+     * entry, and never acquired while holding this cache's monitor.
+     */
+    private final KeyLockStripes keyLocks = new KeyLockStripes();
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -278,23 +370,61 @@ public final class DiskLruCache implements Closeable {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
-                }
             }
+            // evicting takes key locks, so it must run without holding the monitor
+            trimToSize();
+            compactJournal();
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    /**
+     * Writes journal records collected under {@link #DURABILITY_GROUP_COMMIT}.
+     */
+    private final ScheduledThreadPoolExecutor journalFlusher = new ScheduledThreadPoolExecutor(1);
+    private final AtomicBoolean journalFlushScheduled = new AtomicBoolean();
+    private final AtomicBoolean readCheckpointScheduled = new AtomicBoolean();
+    private final Runnable readCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            readCheckpointScheduled.set(false);
+            try {
+                checkpointReads();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+    private final Runnable journalFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            journalFlushScheduled.set(false);
+            JournalWriter writer;
+            synchronized (DiskLruCache.this) {
+                writer = journalWriter;
+            }
+            if (writer == null) {
+                return; // closed
+            }
+            try {
+                writer.drain();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+                         int journalFormat) {
         this.directory = directory;
+        this.journalFormat = journalFormat;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        journalFlusher.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        journalFlusher.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -309,21 +439,39 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, JOURNAL_TEXT);
+    }
+
+    /**
+     * Like {@link #open(File, int, int, long)}, writing the journal in
+     * {@code journalFormat}. A journal in the other format is migrated.
+     *
+     * @param journalFormat {@link #JOURNAL_TEXT} or {@link #JOURNAL_BINARY}
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+                                    int journalFormat) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (journalFormat != JOURNAL_TEXT && journalFormat != JOURNAL_BINARY) {
+            throw new IllegalArgumentException("unknown journal format: " + journalFormat);
+        }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, journalFormat);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                int existingFormat = cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (existingFormat == journalFormat && !cache.journalTorn) {
+                    cache.journalWriter = cache.newJournalWriter(true);
+                } else {
+                    // migrate, or drop the torn tail before appending after it
+                    cache.rebuildJournal();
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -334,40 +482,61 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, journalFormat);
         cache.rebuildJournal();
         return cache;
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * @return the format of the journal read.
+     */
+    private int readJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
-            }
-
-            while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
-                }
+            in.mark(4);
+            DataInputStream dataIn = new DataInputStream(in);
+            int magic;
+            try {
+                magic = dataIn.readInt();
+            } catch (EOFException e) {
+                magic = 0;
             }
+            if (magic == BINARY_MAGIC) {
+                readBinaryJournal(dataIn);
+                return JOURNAL_BINARY;
+            }
+            in.reset();
+            readTextJournal(in);
+            return JOURNAL_TEXT;
         } finally {
             closeQuietly(in);
         }
     }
 
+    private void readTextJournal(InputStream in) throws IOException {
+        String magic = readAsciiLine(in);
+        String version = readAsciiLine(in);
+        String appVersionString = readAsciiLine(in);
+        String valueCountString = readAsciiLine(in);
+        String blank = readAsciiLine(in);
+        if (!MAGIC.equals(magic)
+                || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)
+                || !Integer.toString(valueCount).equals(valueCountString)
+                || !"".equals(blank)) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+        }
+
+        while (true) {
+            try {
+                readJournalLine(readAsciiLine(in));
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+    }
+
     private void readJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
@@ -376,6 +545,79 @@ public final class DiskLruCache implements Closeable {
 
         String key = parts[1];
         if (parts[0].equals(REMOVE) && parts.length == 2) {
+            applyJournalRecord(RECORD_REMOVE, key, null);
+        } else if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+            applyJournalRecord(RECORD_CLEAN, key, parseLengths(copyOfRange(parts, 2, parts.length)));
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            applyJournalRecord(RECORD_DIRTY, key, null);
+        } else if (parts[0].equals(READ) && parts.length == 2) {
+            applyJournalRecord(RECORD_READ, key, null);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    private void readBinaryJournal(DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        int appVersionRead = in.readInt();
+        int valueCountRead = in.readInt();
+        if (version != JOURNAL_BINARY || appVersionRead != appVersion || valueCountRead != valueCount) {
+            throw new IOException("unexpected journal header: ["
+                    + version + ", " + appVersionRead + ", " + valueCountRead + "]");
+        }
+
+        CRC32 crc = new CRC32();
+        DataInputStream checkedIn = new DataInputStream(new CheckedInputStream(in, crc));
+        byte[] hexKey = new byte[16];
+        byte[] keyBytes = new byte[64];
+        while (true) {
+            crc.reset();
+            int type = checkedIn.read();
+            if (type == -1) {
+                return; // end of journal
+            }
+            try {
+                String key;
+                if ((type & RECORD_HEX_KEY) != 0) {
+                    checkedIn.readFully(hexKey);
+                    key = toHex(hexKey);
+                } else {
+                    int keyLength = (int) readVarint(checkedIn);
+                    if (keyLength > keyBytes.length) {
+                        keyBytes = new byte[keyLength];
+                    }
+                    checkedIn.readFully(keyBytes, 0, keyLength);
+                    key = new String(keyBytes, 0, keyLength, UTF_8);
+                }
+                type &= ~RECORD_HEX_KEY;
+                long[] lengths = null;
+                if (type == RECORD_CLEAN) {
+                    lengths = new long[valueCount];
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = readVarint(checkedIn);
+                    }
+                }
+                long expectedCrc = crc.getValue();
+                if (type < RECORD_CLEAN || type > RECORD_READ
+                        || (in.readInt() & 0xFFFFFFFFL) != expectedCrc) {
+                    journalTorn = true;
+                    return;
+                }
+                applyJournalRecord(type, key, lengths);
+            } catch (EOFException e) {
+                journalTorn = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replays a journal record into {@link #lruEntries}.
+     *
+     * @param lengths lengths of the values for {@link #RECORD_CLEAN}, otherwise null.
+     */
+    private void applyJournalRecord(int type, String key, long[] lengths) {
+        if (type == RECORD_REMOVE) {
             lruEntries.remove(key);
             return;
         }
@@ -386,17 +628,14 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (type == RECORD_CLEAN) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
-        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        } else if (type == RECORD_DIRTY) {
             entry.currentEditor = new Editor(entry);
-        } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
-        } else {
-            throw new IOException("unexpected journal line: " + line);
         }
+        // RECORD_READ: this work was already done by calling lruEntries.get()
     }
 
     /**
@@ -405,13 +644,16 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteOrphanFiles();
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
-            if (entry.currentEditor == null) {
+            if (entry.currentEditor == null && hasCleanFiles(entry)) {
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
                 }
             } else {
+                // being edited when the cache was closed, or its files were
+                // deleted by a remove whose record was lost
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
                     deleteIfExists(entry.getCleanFile(t));
@@ -422,37 +664,176 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private boolean hasCleanFiles(Entry entry) {
+        if (!entry.readable) {
+            return false;
+        }
+        for (int t = 0; t < valueCount; t++) {
+            if (!entry.getCleanFile(t).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes entry files of keys the journal doesn't know, which a torn
+     * journal, or records that were never written, may have lost track of.
+     * Also deletes all dirty files, since nothing is being edited while opening,
+     * even of known keys whose DIRTY record was lost.
+     */
+    private void deleteOrphanFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(JOURNAL_FILE)) {
+                continue;
+            }
+            String key = keyOfEntryFile(name);
+            if (key != null && (name.endsWith(".tmp") || !lruEntries.containsKey(key))) {
+                deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the key of an entry file named {@code key.index} or {@code key.index.tmp},
+     * or null if {@code name} isn't one. Keys may contain dots themselves,
+     * so only the suffix is stripped.
+     */
+    private static String keyOfEntryFile(String name) {
+        if (name.endsWith(".tmp")) {
+            name = name.substring(0, name.length() - ".tmp".length());
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return null;
+        }
+        for (int i = dot + 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        return name.substring(0, dot);
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * current journal if it exists. Only used while opening, later the journal
+     * is compacted by {@link #compactJournal()} instead.
      */
     private synchronized void rebuildJournal() throws IOException {
         if (journalWriter != null) {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
-
+        // the new journal has entries in the order they were used
+        unloggedReads.clear();
+        JournalWriter writer = newJournalWriter(journalFileTmp, false);
+        writer.writeHeader();
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                writer.dirty(entry.key);
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writer.clean(entry.key, entry.lengths);
             }
         }
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalWriter = newJournalWriter(true);
+    }
+
+    /**
+     * Rewrites the journal without redundant records if needed, like
+     * {@link #rebuildJournal()}, without blocking other operations meanwhile.
+     * <p>
+     * The entries are copied under the monitor, and the new journal is written
+     * without it while the current journal goes on. Records appended meanwhile
+     * are also copied aside, and added to the new journal when it's swapped in.
+     */
+    private void compactJournal() throws IOException {
+        JournalWriter oldWriter;
+        String[] keys;
+        long[][] lengths;
+        boolean[] dirty;
+        synchronized (this) {
+            oldWriter = journalWriter;
+            if (oldWriter == null || !journalRebuildRequired()) {
+                return;
+            }
+            int count = lruEntries.size();
+            keys = new String[count];
+            lengths = new long[count][];
+            dirty = new boolean[count];
+            int i = 0;
+            for (Entry entry : lruEntries.values()) {
+                keys[i] = entry.key;
+                lengths[i] = entry.lengths.clone();
+                dirty[i] = entry.currentEditor != null;
+                i++;
+            }
+            // the new journal has entries in the order they were used
+            unloggedReads.clear();
+            redundantOpCount = 0;
+            oldWriter.startCopying();
+        }
+
+        // only this thread uses the new writer until it's swapped in
+        JournalWriter writer = newJournalWriter(journalFileTmp, false);
+        boolean swapped = false;
+        try {
+            writer.writeHeader();
+            for (int i = 0; i < keys.length; i++) {
+                if (dirty[i]) {
+                    writer.dirty(keys[i]);
+                } else {
+                    writer.clean(keys[i], lengths[i]);
+                }
+            }
+            writer.drain();
+
+            synchronized (this) {
+                if (journalWriter != oldWriter) {
+                    return; // closed meanwhile
+                }
+                writer.append(oldWriter.stopCopying());
+                if (!journalFileTmp.renameTo(journalFile)) {
+                    throw new IOException("failed to rename " + journalFileTmp);
+                }
+                journalWriter = writer;
+                swapped = true;
+                // its last records are in the new journal already, and its file is replaced
+                oldWriter.close();
+            }
+        } finally {
+            if (!swapped) {
+                synchronized (this) {
+                    if (journalWriter == oldWriter) {
+                        oldWriter.stopCopying();
+                    }
+                }
+                writer.close();
+                deleteIfExists(journalFileTmp);
+            }
+        }
+        // records copied over are written by the durability
+        commitJournal();
+    }
+
+    private JournalWriter newJournalWriter(boolean append) throws IOException {
+        return newJournalWriter(journalFile, append);
+    }
+
+    private JournalWriter newJournalWriter(File file, boolean append) throws IOException {
+        if (journalFormat == JOURNAL_BINARY) {
+            return new BinaryJournalWriter(new FileOutputStream(file, append));
+        }
+        return new TextJournalWriter(new FileOutputStream(file, append));
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -473,40 +854,64 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+        KeyLockStripes.Stripe keyLock = keyLocks.forKey(key);
+        keyLock.lock();
+        try {
+            Entry entry;
+            long sequenceNumber;
+            long[] lengths;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if (entry == null) {
+                    return null;
+                }
 
-        if (!entry.readable) {
-            return null;
-        }
+                if (!entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
+                lengths = entry.lengths.clone();
+            }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits. Holding the key lock keeps commits and removals
+             * of this entry out while opening.
+             */
+            InputStream[] ins = new InputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                for (InputStream in : ins) {
+                    closeQuietly(in);
+                }
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
+            synchronized (this) {
+                if (journalWriter != null) {
+                    // move to the end
+                    unloggedReads.remove(key);
+                    unloggedReads.add(key);
+                    if (unloggedReads.size() >= MAX_UNLOGGED_READS) {
+                        journalFlusher.execute(readCheckpointTask);
+                    } else if (readCheckpointScheduled.compareAndSet(false, true)) {
+                        journalFlusher.schedule(readCheckpointTask, readCheckpointMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+            return new Snapshot(key, sequenceNumber, ins, lengths);
+        } finally {
+            keyLock.unlock();
+        }
     }
 
     /**
@@ -517,28 +922,36 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
-
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+        KeyLockStripes.Stripe keyLock = keyLocks.forKey(key);
+        keyLock.lock();
+        try {
+            Editor editor;
+            synchronized (this) {
+                checkNotClosed();
+                Entry entry = lruEntries.get(key);
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                        && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                    return null; // snapshot is stale
+                }
+                if (entry == null) {
+                    entry = new Entry(key);
+                    lruEntries.put(key, entry);
+                } else if (entry.currentEditor != null) {
+                    return null; // another edit is in progress
+                }
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+                editor = new Editor(entry);
+                entry.currentEditor = editor;
+                journalWriter.dirty(key);
+            }
+            // files created before the record is written are deleted on opening if it's lost
+            commitJournal();
+            return editor;
+        } finally {
+            keyLock.unlock();
+        }
     }
 
     /**
@@ -565,53 +978,169 @@ public final class DiskLruCache implements Closeable {
         return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    private void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+        KeyLockStripes.Stripe keyLock = keyLocks.forKey(entry.key);
+        keyLock.lock();
+        try {
+            boolean readable;
+            synchronized (this) {
+                if (entry.currentEditor != editor) {
+                    throw new IllegalStateException();
+                }
+                readable = entry.readable;
+            }
+
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
+                }
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
+            // touch the filesystem without holding the monitor, the key lock keeps readers out
+            long[] newLengths = new long[valueCount];
+            boolean[] published = new boolean[valueCount];
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        newLengths[i] = clean.length();
+                        published[i] = true;
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+            synchronized (this) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (published[i]) {
+                        long oldLength = entry.lengths[i];
+                        entry.lengths[i] = newLengths[i];
+                        size = size - oldLength + newLengths[i];
+                    }
+                }
+
+                redundantOpCount++;
+                entry.currentEditor = null;
+                if (entry.readable | success) {
+                    entry.readable = true;
+                    journalWriter.clean(entry.key, entry.lengths);
+                    if (success) {
+                        entry.sequenceNumber = nextSequenceNumber++;
+                    }
+                } else {
+                    lruEntries.remove(entry.key);
+                    journalWriter.remove(entry.key);
+                }
+
+                if (size > maxSize || journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
+            commitJournal();
+        } finally {
+            keyLock.unlock();
         }
+    }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+    /**
+     * Sets how soon journal records are written to the file,
+     * {@link #DURABILITY_GROUP_COMMIT} by default.
+     *
+     * @param durability {@link #DURABILITY_SYNC} or {@link #DURABILITY_GROUP_COMMIT}
+     */
+    public void setDurability(int durability) {
+        if (durability != DURABILITY_SYNC && durability != DURABILITY_GROUP_COMMIT) {
+            throw new IllegalArgumentException("unknown durability: " + durability);
+        }
+        this.durability = durability;
+    }
+
+    /**
+     * Sets when a group commit happens: {@code delayMillis} after the first
+     * record not written yet, or as soon as {@code maxPendingBytes} of records
+     * are waiting.
+     */
+    public void setGroupCommit(long delayMillis, int maxPendingBytes) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis < 0");
+        }
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("maxPendingBytes <= 0");
+        }
+        this.groupCommitDelayMillis = delayMillis;
+        this.groupCommitBytes = maxPendingBytes;
+    }
+
+    /**
+     * Sets how often the order of reads is written to the journal, so that
+     * it survives reopening the cache. Reads since the last checkpoint
+     * are also written by {@link #flush()} and {@link #close()}.
+     */
+    public void setReadCheckpointInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis < 0");
+        }
+        this.readCheckpointMillis = millis;
+    }
+
+    /**
+     * Appends a READ record for each key read since the last checkpoint,
+     * in the order they were last read.
+     */
+    private void checkpointReads() throws IOException {
+        synchronized (this) {
+            if (journalWriter == null || unloggedReads.isEmpty()) {
+                return;
+            }
+            for (String key : unloggedReads) {
+                // a READ record of a removed key would bring it back on replay,
+                // and get() would move the entry
+                if (lruEntries.containsKey(key)) {
+                    journalWriter.read(key);
+                    redundantOpCount++;
+                }
+            }
+            unloggedReads.clear();
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
+        commitJournal();
+    }
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    /**
+     * Called after appending journal records, without holding the monitor.
+     * Writes them right away or schedules a group commit, by the durability.
+     */
+    private void commitJournal() throws IOException {
+        JournalWriter writer;
+        synchronized (this) {
+            writer = journalWriter;
+        }
+        if (writer == null) {
+            return;
+        }
+        if (durability == DURABILITY_SYNC) {
+            writer.drain();
+            return;
+        }
+
+        int pending = writer.pendingSize();
+        if (pending >= groupCommitBytes * 4L) {
+            // the flusher is falling behind, write on the caller's thread
+            writer.drain();
+        } else if (pending >= groupCommitBytes) {
+            journalFlusher.execute(journalFlushTask);
+        } else if (journalFlushScheduled.compareAndSet(false, true)) {
+            journalFlusher.schedule(journalFlushTask, groupCommitDelayMillis, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -631,32 +1160,49 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
-        checkNotClosed();
+    public boolean remove(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
-        }
+        KeyLockStripes.Stripe keyLock = keyLocks.forKey(key);
+        keyLock.lock();
+        try {
+            Entry entry;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if (entry == null || entry.currentEditor != null) {
+                    return false;
+                }
+            }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            // nobody can start editing it while we hold the key lock
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                // already gone if it was deleted manually
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("failed to delete " + file);
+                }
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+            synchronized (this) {
+                for (int i = 0; i < valueCount; i++) {
+                    size -= entry.lengths[i];
+                    entry.lengths[i] = 0;
+                }
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
+                redundantOpCount++;
+                journalWriter.remove(key);
+                lruEntries.remove(key);
 
-        return true;
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+            commitJournal();
+
+            return true;
+        } finally {
+            keyLock.unlock();
+        }
     }
 
     /**
@@ -675,34 +1221,77 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
+    public void flush() throws IOException {
+        synchronized (this) {
+            checkNotClosed();
+        }
         trimToSize();
-        journalWriter.flush();
+        checkpointReads();
+        JournalWriter writer;
+        synchronized (this) {
+            checkNotClosed();
+            writer = journalWriter;
+        }
+        writer.drain();
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // already closed
+    public void close() throws IOException {
+        List<Editor> editors = new ArrayList<Editor>();
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // already closed
+            }
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    editors.add(entry.currentEditor);
+                }
+            }
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        for (Editor editor : editors) {
+            try {
+                editor.abort();
+            } catch (IllegalStateException ignored) {
+                // completed by its owner meanwhile
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        checkpointReads();
+        synchronized (this) {
+            if (journalWriter == null) {
+                return;
+            }
+            journalWriter.close();
+            journalWriter = null;
+        }
     }
 
+    /**
+     * Evicts the least recently used entries that aren't being edited
+     * until the size is within limit. Never called while holding the monitor,
+     * because it takes key locks.
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        while (true) {
+            String toEvict = null;
+            synchronized (this) {
+                if (journalWriter == null || size <= maxSize) {
+                    return;
+                }
+//                Map.Entry<String, Entry> toEvict = lruEntries.eldest();
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.currentEditor == null) {
+                        toEvict = entry.key;
+                        break;
+                    }
+                }
+            }
+            if (toEvict == null) {
+                return; // everything is being edited
+            }
+            remove(toEvict);
         }
     }
 
@@ -727,6 +1316,329 @@ public final class DiskLruCache implements Closeable {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
+    private static long[] parseLengths(String[] strings) throws IOException {
+        long[] lengths = new long[strings.length];
+        try {
+            for (int i = 0; i < strings.length; i++) {
+                lengths[i] = Long.parseLong(strings[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+        }
+        return lengths;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static boolean isHexKey(String key) {
+        if (key.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Appends records to a journal in one of the formats.
+     * <p>
+     * Records are collected in memory and written to the file by
+     * {@link #drain()}, so that appending never does IO under the monitor.
+     * Lock order: the monitor, then the drain lock, then this writer.
+     */
+    private abstract class JournalWriter implements Closeable {
+        private final OutputStream out;
+        private final Object drainLock = new Object();
+
+        /**
+         * Records not written yet. Guarded by this writer.
+         */
+        private JournalBuffer pending = new JournalBuffer();
+
+        /**
+         * Records being written by {@link #drain()}, swapped with
+         * {@link #pending}. Guarded by the drain lock.
+         */
+        private JournalBuffer draining = new JournalBuffer();
+
+        private boolean closed;
+
+        /**
+         * Copies of the records appended since {@link #startCopying()},
+         * null if not copying. Guarded by this writer.
+         */
+        private JournalBuffer copies;
+
+        private JournalWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        abstract void writeHeader() throws IOException;
+
+        abstract void clean(String key, long[] lengths) throws IOException;
+
+        abstract void dirty(String key) throws IOException;
+
+        abstract void remove(String key) throws IOException;
+
+        abstract void read(String key) throws IOException;
+
+        final synchronized void append(byte[] buffer, int offset, int length) {
+            pending.write(buffer, offset, length);
+            if (copies != null) {
+                copies.write(buffer, offset, length);
+            }
+        }
+
+        /**
+         * Appends records copied from another writer.
+         */
+        final synchronized void append(JournalBuffer records) {
+            records.copyTo(pending);
+        }
+
+        final synchronized void startCopying() {
+            copies = new JournalBuffer();
+        }
+
+        final synchronized JournalBuffer stopCopying() {
+            JournalBuffer result = copies;
+            copies = null;
+            return result;
+        }
+
+        final synchronized int pendingSize() {
+            return pending.size();
+        }
+
+        /**
+         * Writes the records appended so far to the file. Appending goes on
+         * into the other buffer meanwhile.
+         */
+        final void drain() throws IOException {
+            synchronized (drainLock) {
+                if (closed) {
+                    return;
+                }
+                synchronized (this) {
+                    JournalBuffer swap = pending;
+                    pending = draining;
+                    draining = swap;
+                }
+                try {
+                    draining.writeTo(out);
+                } finally {
+                    draining.reset();
+                }
+            }
+        }
+
+        @Override
+        public final void close() throws IOException {
+            synchronized (drainLock) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    drain();
+                } finally {
+                    closed = true;
+                    out.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable byte buffer that is reused instead of reallocated.
+     */
+    private static final class JournalBuffer extends ByteArrayOutputStream {
+        JournalBuffer() {
+            super(IO_BUFFER_SIZE);
+        }
+
+        void copyTo(JournalBuffer other) {
+            other.write(buf, 0, count);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // not synchronized, guarded by the owning writer
+            int newCount = count + len;
+            if (newCount > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, newCount));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count = newCount;
+        }
+    }
+
+    private final class TextJournalWriter extends JournalWriter {
+        private TextJournalWriter(OutputStream out) {
+            super(out);
+        }
+
+        private void appendLine(String line) {
+            byte[] bytes = (line + '\n').getBytes(UTF_8);
+            append(bytes, 0, bytes.length);
+        }
+
+        @Override
+        void writeHeader() throws IOException {
+            appendLine(MAGIC);
+            appendLine(VERSION_1);
+            appendLine(Integer.toString(appVersion));
+            appendLine(Integer.toString(valueCount));
+            appendLine("");
+        }
+
+        @Override
+        void clean(String key, long[] lengths) throws IOException {
+            StringBuilder line = new StringBuilder(CLEAN).append(' ').append(key);
+            for (long length : lengths) {
+                line.append(' ').append(length);
+            }
+            appendLine(line.toString());
+        }
+
+        @Override
+        void dirty(String key) throws IOException {
+            appendLine(DIRTY + ' ' + key);
+        }
+
+        @Override
+        void remove(String key) throws IOException {
+            appendLine(REMOVE + ' ' + key);
+        }
+
+        @Override
+        void read(String key) throws IOException {
+            appendLine(READ + ' ' + key);
+        }
+    }
+
+    private final class BinaryJournalWriter extends JournalWriter {
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Reused for every record, grown for long keys. Guarded by the monitor,
+         * under which all records are written.
+         */
+        private byte[] record = new byte[64];
+        private int count;
+
+        private BinaryJournalWriter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void writeHeader() throws IOException {
+            count = 0;
+            putInt(BINARY_MAGIC);
+            record[count++] = JOURNAL_BINARY;
+            putInt(appVersion);
+            putInt(valueCount);
+            append(record, 0, count);
+        }
+
+        @Override
+        void clean(String key, long[] lengths) throws IOException {
+            startRecord(RECORD_CLEAN, key);
+            for (long length : lengths) {
+                putVarint(length);
+            }
+            endRecord();
+        }
+
+        @Override
+        void dirty(String key) throws IOException {
+            startRecord(RECORD_DIRTY, key);
+            endRecord();
+        }
+
+        @Override
+        void remove(String key) throws IOException {
+            startRecord(RECORD_REMOVE, key);
+            endRecord();
+        }
+
+        @Override
+        void read(String key) throws IOException {
+            startRecord(RECORD_READ, key);
+            endRecord();
+        }
+
+        private void startRecord(int type, String key) {
+            count = 0;
+            if (isHexKey(key)) {
+                ensureCapacity(1 + 16 + valueCount * 10 + 4);
+                record[count++] = (byte) (type | RECORD_HEX_KEY);
+                for (int i = 0; i < 32; i += 2) {
+                    record[count++] = (byte) ((Character.digit(key.charAt(i), 16) << 4)
+                            | Character.digit(key.charAt(i + 1), 16));
+                }
+            } else {
+                byte[] keyBytes = key.getBytes(UTF_8);
+                ensureCapacity(1 + 5 + keyBytes.length + valueCount * 10 + 4);
+                record[count++] = (byte) type;
+                putVarint(keyBytes.length);
+                System.arraycopy(keyBytes, 0, record, count, keyBytes.length);
+                count += keyBytes.length;
+            }
+        }
+
+        private void endRecord() {
+            crc.reset();
+            crc.update(record, 0, count);
+            putInt((int) crc.getValue());
+            append(record, 0, count);
+        }
+
+        private void putInt(int value) {
+            record[count++] = (byte) (value >>> 24);
+            record[count++] = (byte) (value >>> 16);
+            record[count++] = (byte) (value >>> 8);
+            record[count++] = (byte) value;
+        }
+
+        private void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                record[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            record[count++] = (byte) value;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (record.length < capacity) {
+                record = new byte[capacity];
+            }
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -734,11 +1646,13 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
         }
 
         /**
@@ -764,6 +1678,13 @@ public final class DiskLruCache implements Closeable {
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns the byte length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
         @Override
         public void close() {
             for (InputStream in : ins) {
@@ -795,8 +1716,9 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
             }
+            // the clean file can't change while this edit is in progress
+            return new FileInputStream(entry.getCleanFile(index));
         }
 
         /**
@@ -820,8 +1742,9 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
             }
+            // only this editor touches the dirty file
+            return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
         }
 
         /**
@@ -929,35 +1852,6 @@ public final class DiskLruCache implements Closeable {
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
-        /**
-         * Set lengths using decimal numbers like "10123".
-         */
-        private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
-                throw invalidLengths(strings);
-            }
-
-            try {
-                for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
-                }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
-            }
-        }
-
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
-        }
-
         public File getCleanFile(int i) {
             return new File(directory, key + "." + i);
         }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * FusionCache
+ * <p>
+ * Fixed size binary header in front of every value written by {@link DiskCache2},
+ * describing how to decode the payload after it:
+ * <pre>
+ *   magic          2 bytes
+ *   format version 1 byte
+ *   flags          1 byte
+ *   type id        4 bytes, see {@link CodecRegistry}
+ *   codec version  2 bytes, see {@link Codec#version()}
+ *   length         4 bytes, of the payload as encoded by the codec, before compression,
+ *                  or {@link #UNKNOWN_LENGTH}
+ * </pre>
+ * All numbers are big-endian.
+ * <p>
+ * If {@link #FLAG_COMPRESSED} is set, the payload is a {@link Compressor} id byte
+ * followed by the compressed bytes.
+ */
+final class EntryHeader {
+    static final int SIZE = 14;
+
+    static final int FLAG_COMPRESSED = 1;
+
+    /**
+     * Length of an uncompressed payload written as a stream,
+     * which takes the rest of the entry.
+     */
+    static final int UNKNOWN_LENGTH = -1;
+
+    private static final int MAGIC = 0xFC4E;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Flags this version knows, entries with other flags can't be read.
+     */
+    private static final int KNOWN_FLAGS = FLAG_COMPRESSED;
+
+    final int flags;
+    final int typeId;
+    final int codecVersion;
+    final int length;
+
+    EntryHeader(int flags, int typeId, int codecVersion, int length) {
+        this.flags = flags;
+        this.typeId = typeId;
+        this.codecVersion = codecVersion;
+        this.length = length;
+    }
+
+    boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        putShort(bytes, 0, MAGIC);
+        bytes[2] = (byte) FORMAT_VERSION;
+        bytes[3] = (byte) flags;
+        putInt(bytes, 4, typeId);
+        putShort(bytes, 8, codecVersion);
+        putInt(bytes, 10, length);
+        return bytes;
+    }
+
+    /**
+     * Read a header from the beginning of an entry.
+     *
+     * @return The header, or null if the entry isn't in a format this version can read.
+     */
+    static EntryHeader read(DataInputStream in) throws IOException {
+        if (in.readUnsignedShort() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+            return null;
+        }
+        int flags = in.readUnsignedByte();
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            return null;
+        }
+        int typeId = in.readInt();
+        int codecVersion = in.readUnsignedShort();
+        int length = in.readInt();
+        if (length < 0 && (length != UNKNOWN_LENGTH || (flags & FLAG_COMPRESSED) != 0)) {
+            return null;
+        }
+        return new EntryHeader(flags, typeId, codecVersion, length);
+    }
+
+    /**
+     * Read a header from an unbuffered stream, without reading past it.
+     */
+    static EntryHeader readUnbuffered(InputStream in) throws IOException {
+        byte[] bytes = new byte[SIZE];
+        new DataInputStream(in).readFully(bytes);
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void putShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    @Override
+    public String toString() {
+        return "EntryHeader{" +
+                "flags=" + flags +
+                ", typeId=" + typeId +
+                ", codecVersion=" + codecVersion +
+                ", length=" + length +
+                '}';
+    }
+}
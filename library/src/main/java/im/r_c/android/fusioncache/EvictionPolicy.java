@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+/**
+ * FusionCache
+ * <p>
+ * Decides which entry a size-bounded cache (like {@link LruCache}) evicts next.
+ * <p>
+ * The cache reports every change of its contents to the policy,
+ * and asks for a victim while it's over its max size.
+ * Methods are called while holding the cache's lock, so implementations
+ * don't need to be thread-safe, but must be quick and
+ * never call back into the cache.
+ * <p>
+ * A policy keeps track of one cache's keys,
+ * so never share an instance between caches.
+ */
+public interface EvictionPolicy<K> {
+    /**
+     * Called after {@code key} was added to the cache.
+     * A put replacing an existing value is reported as
+     * {@link #onRemove} followed by {@code onInsert}.
+     *
+     * @param size Size of the entry, in the cache's units.
+     */
+    void onInsert(K key, int size);
+
+    /**
+     * Called after a cache hit of {@code key}.
+     */
+    void onAccess(K key);
+
+    /**
+     * Called after {@code key} was removed from the cache
+     * for any reason other than being returned by {@link #victim}.
+     */
+    void onRemove(K key);
+
+    /**
+     * Chooses the entry to evict and forgets it.
+     * The cache removes the returned key right away.
+     * <p>
+     * Only called while the cache is not empty,
+     * and must return one of the keys currently in it.
+     */
+    K victim();
+}
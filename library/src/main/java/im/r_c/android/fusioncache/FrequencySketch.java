@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+/**
+ * FusionCache
+ * <p>
+ * A count-min sketch estimating how often keys were seen recently,
+ * using 4-bit counters packed into longs (16 per long), with a depth of 4.
+ * <p>
+ * After a sample of additions (10 times the number of counter longs),
+ * all counters are halved, so that old popularity fades away.
+ * <p>
+ * This class is <b>NOT</b> thread-safe.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final int MAX_COUNT = 15;
+
+    private long[] mTable = new long[MIN_TABLE_SIZE];
+    private int mSampleSize = 10 * MIN_TABLE_SIZE;
+    private int mAdditions;
+
+    /**
+     * Grow the table to estimate about {@code expectedSize} keys well.
+     * Growing forgets all counts, so it's only done by powers of two.
+     */
+    void ensureCapacity(int expectedSize) {
+        int size = Integer.highestOneBit(Math.max(expectedSize, MIN_TABLE_SIZE));
+        if (size < expectedSize && size < (1 << 30)) {
+            size <<= 1;
+        }
+        if (mTable.length >= size) {
+            return;
+        }
+        mTable = new long[size];
+        mSampleSize = size <= Integer.MAX_VALUE / 10 ? 10 * size : Integer.MAX_VALUE;
+        mAdditions = 0;
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of {@code key}, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int shift = offsetOf(hash, i) << 2;
+            frequency = Math.min(frequency, (int) ((mTable[index] >>> shift) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an occurrence of {@code key}.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int shift = offsetOf(hash, i) << 2;
+            long mask = 0xfL << shift;
+            if ((mTable[index] & mask) != mask) {
+                mTable[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halve every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mAdditions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (mTable.length - 1);
+    }
+
+    /**
+     * Which of the 16 counters of a long the row uses.
+     */
+    private static int offsetOf(int hash, int row) {
+        return (hash >>> (row << 3)) & 0xf;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        h ^= h >>> 15;
+        return h;
+    }
+}
@@ -29,15 +29,37 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import im.r_c.android.fusioncache.util.FileUtils;
-import im.r_c.android.fusioncache.util.MemoryUtils;
 
 /**
  * FusionCache
@@ -49,7 +71,9 @@ import im.r_c.android.fusioncache.util.MemoryUtils;
  * <p>
  * It also can be used as separate memory and disk caches.
  * <p>
- * This class is thread-safe.
+ * This class is thread-safe. Memory hits never wait for disk IO,
+ * and operations on different keys run in parallel,
+ * only operations on the same key are serialized.
  * <p>
  * Methods of this class may block while doing IO things.
  *
@@ -61,11 +85,80 @@ public class FusionCache extends AbstractCache {
 
     private static final String DEFAULT_DISK_CACHE_DIR_NAME = "FusionCache";
 
+    /**
+     * Passed to {@link #store} to put unconditionally.
+     */
+    private static final long ANY_SEQ = Long.MAX_VALUE;
+
+    /**
+     * Number of threads of the default IO executor.
+     * Flash storage doesn't get faster with more concurrent requests than this.
+     */
+    private static final int DEFAULT_IO_THREAD_COUNT = 2;
+
+    /**
+     * Max number of operations waiting for the default IO executor,
+     * further ones are rejected instead of piling up.
+     */
+    private static final int DEFAULT_IO_QUEUE_CAPACITY = 256;
+
+    /**
+     * Per-thread collector of the entries evicted by a memory put,
+     * reused so that puts evicting nothing allocate nothing for it.
+     */
+    private static final ThreadLocal<Evictions> EVICTIONS = new ThreadLocal<Evictions>() {
+        @Override
+        protected Evictions initialValue() {
+            return new Evictions();
+        }
+    };
+
     private WeakReference<Context> mAppContextRef;
     private MemCache mMemCache;
     private DiskCache2 mDiskCache;
     private boolean mFusionModeEnabled;
 
+    /**
+     * Serializes tier coordination (promotion, spilling, removal) per key.
+     */
+    private final KeyLockStripes mKeyLocks = new KeyLockStripes();
+
+    /**
+     * Source of sequence numbers for writing operations.
+     * <p>
+     * A spill of an evicted entry is dropped if its key's stripe
+     * was invalidated ({@code remove}, {@code clear} or direct disk put)
+     * after the entry was evicted from memory,
+     * so that a concurrent {@code remove} can't be undone by the spill.
+     * <p>
+     * Likewise, a value loaded from disk is not promoted into memory
+     * if its key's stripe was written while loading.
+     */
+    private final AtomicLong mInvalidationSeq = new AtomicLong();
+
+    /**
+     * Sequence number of the last {@code clear}.
+     */
+    private volatile long mLastClearSeq;
+
+    /**
+     * Queue of evicted entries waiting to be spilled into disk cache,
+     * or null if write-behind is not enabled.
+     */
+    private volatile SpillQueue mSpillQueue;
+
+    /**
+     * Loads in progress, so that concurrent misses of the same key
+     * wait for a single read and decode (or {@link Loader} call)
+     * instead of doing their own.
+     */
+    private final ConcurrentHashMap<String, Load> mLoads = new ConcurrentHashMap<>();
+
+    /**
+     * Runs asynchronous operations, created on first use if not set.
+     */
+    private ExecutorService mIOExecutor;
+
     public FusionCache(Context context, long maxMemCacheSize, long maxDiskCacheSize) {
         // Set enableFusionMode to default value true
         this(context, maxMemCacheSize, maxDiskCacheSize, true);
@@ -91,6 +184,13 @@ public class FusionCache extends AbstractCache {
         this(context, maxMemCacheSize, maxDiskCacheSize, diskCacheDir, true);
     }
 
+    /**
+     * The disk cache is opened on a background thread, so that this returns
+     * without reading its journal, see {@link #whenDiskCacheReady(Callback)}.
+     * Until it's opened, nothing waits for it: writes and removes of disk cache
+     * (spills and the like included) are queued in memory and applied in order once it's opened,
+     * and gets only find what's queued.
+     */
     public FusionCache(Context context, long maxMemCacheSize, long maxDiskCacheSize, File diskCacheDir, boolean enableFusionMode) {
         // Do the real initialization
 
@@ -105,10 +205,29 @@ public class FusionCache extends AbstractCache {
             mMemCache = new MemCache(maxMemCacheSize);
         }
         if (maxDiskCacheSize > 0) {
-            mDiskCache = new DiskCache2(diskCacheDir, maxDiskCacheSize);
+            mDiskCache = new DiskCache2(diskCacheDir, maxDiskCacheSize, true);
         }
     }
 
+    public FusionCache(Context context, MemCache memCache, DiskCache2 diskCache) {
+        // Set enableFusionMode to default value true
+        this(context, memCache, diskCache, true);
+    }
+
+    /**
+     * Fuses memory and disk caches that are already configured,
+     * for example a {@code MemCache} created with {@code concurrent} set to true.
+     *
+     * @param memCache  The memory cache, or null to go without one.
+     * @param diskCache The disk cache, or null to go without one.
+     */
+    public FusionCache(Context context, MemCache memCache, DiskCache2 diskCache, boolean enableFusionMode) {
+        mAppContextRef = new WeakReference<>(context.getApplicationContext());
+        mFusionModeEnabled = enableFusionMode;
+        mMemCache = memCache;
+        mDiskCache = diskCache;
+    }
+
     /**
      * Returns the {@link #mMemCache},
      * or null if max memory cache size is non-positive.
@@ -125,6 +244,23 @@ public class FusionCache extends AbstractCache {
         return mDiskCache;
     }
 
+    /**
+     * Get notified when disk cache is opened,
+     * see {@link DiskCache2#whenReady(Callback)}.
+     * If there's no disk cache, {@code callback} is called right away with null.
+     *
+     * @return A future of the disk cache, done once it's opened.
+     */
+    public Future<DiskCache2> whenDiskCacheReady(Callback<? super DiskCache2> callback) {
+        if (mDiskCache == null) {
+            if (callback != null) {
+                callback.onSuccess(null);
+            }
+            return new CompletedFuture<>(null);
+        }
+        return mDiskCache.whenReady(callback);
+    }
+
     @Override
     public void put(String key, String value) {
         putInternal(key, value);
@@ -160,6 +296,15 @@ public class FusionCache extends AbstractCache {
         putInternal(key, value);
     }
 
+    /**
+     * Put a value of any type. Memory cache keeps any object,
+     * but disk cache only stores types with a {@link Codec}
+     * (see {@link #registerCodec}), others are dropped when they leave memory.
+     */
+    public void put(String key, Object value) {
+        putInternal(key, value);
+    }
+
     @Override
     public String getString(String key) {
         return getInternal(key, String.class);
@@ -195,37 +340,341 @@ public class FusionCache extends AbstractCache {
         return getInternal(key, Serializable.class);
     }
 
-    @Override
-    public synchronized Object remove(String key) {
-        Object result = null;
+    /**
+     * Get a value without knowing its type.
+     * Values from disk cache are decoded by the type stored with them.
+     */
+    public Object get(String key) {
+        return getInternal(key, Object.class);
+    }
+
+    /**
+     * Get a value of any type, see {@link #put(String, Object)}.
+     *
+     * @return The value, or null if it's not cached or isn't of class {@code clz}.
+     */
+    public <T> T get(String key, Class<T> clz) {
+        return getInternal(key, clz);
+    }
+
+    /**
+     * Get a bitmap, holding a reference to it until {@link #releaseBitmap(Bitmap)},
+     * see {@link MemCache#acquireBitmap(String)}.
+     * <p>
+     * On memory miss it's decoded from disk cache into a bitmap from the {@link BitmapPool}
+     * if there's one, and once it's evicted from memory cache and released,
+     * it goes back into the pool to be reused.
+     * Unlike {@link #getBitmap(String)}, concurrent misses of the same key aren't coalesced.
+     */
+    public Bitmap acquireBitmap(String key) {
+        checkFusionMode();
+        if (mMemCache == null) {
+            return getInternal(key, Bitmap.class);
+        }
+        Bitmap bitmap = mMemCache.acquireBitmap(key);
+        if (bitmap != null || mDiskCache == null) {
+            return bitmap;
+        }
+
+        long seq = mInvalidationSeq.get();
+        bitmap = getFromSpillQueue(key, Bitmap.class);
+        if (bitmap != null) {
+            // Shared with the queue, not tracked
+            return bitmap;
+        }
+        bitmap = mDiskCache.getBitmap(key);
+        if (bitmap != null) {
+            promoteAcquired(key, bitmap, seq);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Release a bitmap got from {@link #acquireBitmap(String)}.
+     * It must not be used afterwards.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
         if (mMemCache != null) {
-            result = mMemCache.remove(key);
+            mMemCache.releaseBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Set the pool of bitmaps released from memory cache,
+     * which disk cache decodes into, see {@link BitmapPool}.
+     *
+     * @param pool The pool, or null to disable.
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        if (mMemCache != null) {
+            mMemCache.setBitmapPool(pool);
         }
         if (mDiskCache != null) {
-            // DiskCache's remove method always returns null,
-            // so it's meaningless, won't take it
-            mDiskCache.remove(key);
+            mDiskCache.setBitmapPool(pool);
+        }
+    }
+
+    /**
+     * Open a stream to write a large {@code byte[]} value directly into disk cache,
+     * see {@link DiskCache2#openOutputStream(String)}.
+     * The old value is removed from memory cache right away.
+     *
+     * @return The stream, or null if there's no disk cache or the key can't be written now.
+     */
+    public DiskCache2.EntryOutputStream openOutputStream(String key) {
+        checkFusionMode();
+        if (mDiskCache == null) {
+            return null;
+        }
+
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(key);
+        stripe.lock();
+        try {
+            if (mMemCache != null) {
+                mMemCache.remove(key);
+            }
+            SpillQueue spillQueue = mSpillQueue;
+            if (spillQueue != null) {
+                spillQueue.remove(key);
+            }
+            DiskCache2.EntryOutputStream out = mDiskCache.openOutputStream(key);
+            // Older spills and loads of this key must not overwrite the new value
+            stripe.lastInvalidationSeq = mInvalidationSeq.incrementAndGet();
+            stripe.lastWriteSeq = stripe.lastInvalidationSeq;
+            return out;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #openOutputStream(String)}, as a channel.
+     */
+    public WritableByteChannel openWritableChannel(String key) {
+        DiskCache2.EntryOutputStream out = openOutputStream(key);
+        return out != null ? Channels.newChannel(out) : null;
+    }
+
+    /**
+     * Open a stream to read a {@code byte[]} value,
+     * directly from disk cache if it's not in memory,
+     * see {@link DiskCache2#openInputStream(String)}.
+     * Values read from disk cache this way are not put into memory cache.
+     *
+     * @return The stream, or null if it's not cached or isn't a {@code byte[]}.
+     */
+    public InputStream openInputStream(String key) {
+        checkFusionMode();
+        byte[] bytes = getCachedBytesInMem(key);
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        return mDiskCache != null ? mDiskCache.openInputStream(key) : null;
+    }
+
+    /**
+     * Get a {@code byte[]} value as a buffer,
+     * memory-mapped if it's large and only in disk cache,
+     * see {@link DiskCache2#getByteBuffer(String)}.
+     * Values in memory cache are returned as read-only buffers of the cached arrays.
+     *
+     * @return The buffer, or null if it's not cached or isn't a {@code byte[]}.
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        checkFusionMode();
+        byte[] bytes = getCachedBytesInMem(key);
+        if (bytes != null) {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        return mDiskCache != null ? mDiskCache.getByteBuffer(key) : null;
+    }
+
+    /**
+     * Same as {@link #openInputStream(String)}, as a channel.
+     */
+    public ReadableByteChannel openReadableChannel(String key) {
+        checkFusionMode();
+        byte[] bytes = getCachedBytesInMem(key);
+        if (bytes != null) {
+            return Channels.newChannel(new ByteArrayInputStream(bytes));
+        }
+        return mDiskCache != null ? mDiskCache.openReadableChannel(key) : null;
+    }
+
+    /**
+     * Register a {@link Codec} to store values of {@code clz} in disk cache,
+     * see {@link CodecRegistry#register}.
+     */
+    public <T> void registerCodec(Class<T> clz, Codec<T> codec) {
+        if (mDiskCache != null) {
+            mDiskCache.registerCodec(clz, codec);
+        }
+    }
+
+    /**
+     * Set how bitmaps and drawables are encoded in disk cache,
+     * see {@link DiskCache2#setBitmapEncoding(BitmapCodec)}.
+     */
+    public void setBitmapEncoding(BitmapCodec codec) {
+        if (mDiskCache != null) {
+            mDiskCache.setBitmapEncoding(codec);
+        }
+    }
+
+    /**
+     * Set how values are compressed in disk cache,
+     * see {@link DiskCache2#setCompression(Compressor, int)}.
+     */
+    public void setCompression(Compressor compressor, int threshold) {
+        if (mDiskCache != null) {
+            mDiskCache.setCompression(compressor, threshold);
+        }
+    }
+
+    /**
+     * Store small entries of disk cache in segment files,
+     * see {@link DiskCache2#enableSegmentStore(int, long)}.
+     */
+    public void enableDiskSegmentStore(int sizeCutoff, long maxSize) {
+        if (mDiskCache != null) {
+            mDiskCache.enableSegmentStore(sizeCutoff, maxSize);
+        }
+    }
+
+    /**
+     * Set how soon disk cache records operations in its journal,
+     * see {@link DiskCache2#setDurability(int)}.
+     */
+    public void setDiskDurability(int durability) {
+        if (mDiskCache != null) {
+            mDiskCache.setDurability(durability);
+        }
+    }
+
+    /**
+     * Get the value of {@code key} from memory or disk cache,
+     * or load it with {@code loader} and put it into cache if it's in neither.
+     * <p>
+     * Concurrent calls for the same key share a single load,
+     * so {@code loader} is invoked once no matter how many threads miss.
+     * A loaded value doesn't overwrite a value put for the same key while loading,
+     * instead the latter is returned if it's still in memory cache.
+     *
+     * @param clz    Type of the value, any type with a {@link Codec} if disk cache is used.
+     * @param loader Called on the calling thread, without holding any lock.
+     * @return The value, or null if it's not cached and {@code loader} returned null.
+     */
+    public <T> T get(String key, Class<T> clz, Loader<? extends T> loader) {
+        if (loader == null) {
+            throw new IllegalArgumentException("Loader can't be null.");
+        }
+        return getInternal(key, clz, loader);
+    }
+
+    /**
+     * Get the values of {@code keys} from memory or disk cache,
+     * and load all the missing ones with a single {@code loader} call.
+     * <p>
+     * Unlike {@link #get(String, Class, Loader)},
+     * the missing keys are not shared with concurrent loads.
+     *
+     * @param clz    Type of the values, see {@link #get(String, Class, Loader)}.
+     * @param loader Called at most once, on the calling thread, with the missing keys.
+     * @return Values that are cached or loaded, in the order of {@code keys}.
+     */
+    public <T> Map<String, T> getAll(Collection<String> keys, Class<T> clz, BulkLoader<? extends T> loader) {
+        if (loader == null) {
+            throw new IllegalArgumentException("BulkLoader can't be null.");
+        }
+        checkFusionMode();
+
+        // Read before looking up, so that values put meanwhile are not overwritten
+        long seq = mInvalidationSeq.get();
+
+        Map<String, T> found = new HashMap<>();
+        List<String> missingKeys = new ArrayList<>();
+        for (String key : keys) {
+            T value = getInternal(key, clz, null);
+            if (value != null) {
+                found.put(key, value);
+            } else {
+                missingKeys.add(key);
+            }
+        }
+
+        if (!missingKeys.isEmpty()) {
+            Map<String, ? extends T> loaded = loader.loadAll(Collections.unmodifiableList(missingKeys));
+            if (loaded != null) {
+                for (String key : missingKeys) {
+                    T value = loaded.get(key);
+                    if (value != null) {
+                        found.put(key, storeLoaded(key, clz, value, seq));
+                    }
+                }
+            }
+        }
+
+        Map<String, T> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            T value = found.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
         }
         return result;
     }
 
     @Override
-    public synchronized void clear() {
+    public Object remove(String key) {
+        Object result = null;
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(key);
+        stripe.lock();
+        try {
+            if (mMemCache != null) {
+                result = mMemCache.remove(key);
+            }
+            if (mDiskCache != null) {
+                SpillQueue spillQueue = mSpillQueue;
+                if (spillQueue != null) {
+                    spillQueue.remove(key);
+                }
+                // DiskCache's remove method always returns null,
+                // so it's meaningless, won't take it
+                mDiskCache.remove(key);
+            }
+            // Must be done after removing from memory, see mInvalidationSeq
+            stripe.lastInvalidationSeq = mInvalidationSeq.incrementAndGet();
+            stripe.lastWriteSeq = stripe.lastInvalidationSeq;
+        } finally {
+            stripe.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        // Before clearing the tiers, so that spills and loads of older values
+        // running meanwhile can't write them back afterwards
+        mLastClearSeq = mInvalidationSeq.incrementAndGet();
         if (mMemCache != null) {
             mMemCache.clear();
         }
         if (mDiskCache != null) {
+            SpillQueue spillQueue = mSpillQueue;
+            if (spillQueue != null) {
+                spillQueue.clear();
+            }
             mDiskCache.clear();
         }
     }
 
     @Override
-    public synchronized long size() {
+    public long size() {
         return memCacheSize() + diskCacheSize();
     }
 
     @Override
-    public synchronized long maxSize() {
+    public long maxSize() {
         return maxMemCacheSize() + maxDiskCacheSize();
     }
 
@@ -234,21 +683,211 @@ public class FusionCache extends AbstractCache {
      * <p>
      * Won't change anything in {@link #mMemCache}.
      */
-    public synchronized void saveMemCacheToDisk() {
+    public void saveMemCacheToDisk() {
         if (mMemCache != null && mDiskCache != null) {
             // We got both mMemCache and mDiskCache here
             Map<String, MemCache.ValueWrapper> memCacheSnapshot = mMemCache.snapshot();
             for (Map.Entry<String, MemCache.ValueWrapper> entry : memCacheSnapshot.entrySet()) {
-                putInDiskLocked(entry.getKey(), entry.getValue().obj);
+                KeyLockStripes.Stripe stripe = mKeyLocks.forKey(entry.getKey());
+                stripe.lock();
+                try {
+                    putInDiskLocked(entry.getKey(), entry.getValue().obj);
+                } finally {
+                    stripe.unlock();
+                }
             }
         }
     }
 
+    /**
+     * Get the value of {@code key} without blocking the calling thread.
+     * <p>
+     * A memory hit completes synchronously: {@code callback} is called
+     * on the calling thread and the returned future is already done.
+     * Otherwise the lookup runs on the IO executor,
+     * see {@link #setIOExecutor(ExecutorService)}.
+     * If the executor rejects it, because too many operations are waiting,
+     * the future fails with a {@link RejectedExecutionException}
+     * and {@code callback} is called with it right away.
+     *
+     * @param clz      Type of the value, see {@link #get(String, Class, Loader)}.
+     * @param callback Called with the value (or null if not cached) unless cancelled,
+     *                 on the IO executor's thread for asynchronous lookups. May be null.
+     * @return A future of the value, cancel it to skip a lookup that hasn't started.
+     */
+    public <T> Future<T> getAsync(String key, Class<T> clz, Callback<? super T> callback) {
+        return getAsyncInternal(key, clz, null, callback);
+    }
+
+    /**
+     * Asynchronous version of {@link #get(String, Class, Loader)},
+     * see {@link #getAsync(String, Class, Callback)}.
+     * <p>
+     * {@code loader} is called on the IO executor's thread.
+     */
+    public <T> Future<T> getAsync(String key, Class<T> clz, Loader<? extends T> loader, Callback<? super T> callback) {
+        if (loader == null) {
+            throw new IllegalArgumentException("Loader can't be null.");
+        }
+        return getAsyncInternal(key, clz, loader, callback);
+    }
+
+    /**
+     * Put {@code value} on the IO executor, see {@link #getAsync(String, Class, Callback)}.
+     *
+     * @param value One of the types that {@code put} methods accept.
+     */
+    public Future<Void> putAsync(final String key, final Object value, Callback<? super Void> callback) {
+        checkFusionMode();
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                putInternal(key, value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Remove {@code key} on the IO executor, see {@link #getAsync(String, Class, Callback)}.
+     *
+     * @param callback Called with the removed memory cache value, like {@link #remove(String)} returns.
+     */
+    public Future<Object> removeAsync(final String key, Callback<Object> callback) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return remove(key);
+            }
+        }, callback);
+    }
+
+    /**
+     * Set the executor that runs asynchronous operations.
+     * <p>
+     * By default a pool of {@value #DEFAULT_IO_THREAD_COUNT} threads is used,
+     * whose threads die when idle, with up to {@value #DEFAULT_IO_QUEUE_CAPACITY}
+     * operations waiting for them, rejecting further ones.
+     * The caller owns {@code executor} and is responsible for shutting it down.
+     */
+    public synchronized void setIOExecutor(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor can't be null.");
+        }
+        mIOExecutor = executor;
+    }
+
+    /**
+     * Set the {@link Weigher} estimating sizes of values put into memory cache,
+     * see {@link MemCache#setWeigher(Weigher)}.
+     */
+    public void setWeigher(Weigher<Object> weigher) {
+        if (mMemCache != null) {
+            mMemCache.setWeigher(weigher);
+        }
+    }
+
+    private synchronized ExecutorService ioExecutor() {
+        if (mIOExecutor == null) {
+            // Rejected operations fail their futures, see submit()
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_IO_THREAD_COUNT, DEFAULT_IO_THREAD_COUNT,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(DEFAULT_IO_QUEUE_CAPACITY),
+                    new IOThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            mIOExecutor = executor;
+        }
+        return mIOExecutor;
+    }
+
+    private <T> Future<T> getAsyncInternal(final String key, final Class<T> clz,
+                                           final Loader<? extends T> loader, Callback<? super T> callback) {
+        checkFusionMode();
+
+        if (mMemCache != null) {
+            T result = getFromMem(key, clz);
+            if (result != null) {
+                // Memory hit, no need to hop threads
+                if (callback != null) {
+                    callback.onSuccess(result);
+                }
+                return new CompletedFuture<>(result);
+            }
+        }
+
+        return submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return getInternal(key, clz, loader);
+            }
+        }, callback);
+    }
+
+    private <T> Future<T> submit(Callable<T> callable, Callback<? super T> callback) {
+        CallbackFutureTask<T> task = new CallbackFutureTask<>(callable, callback);
+        try {
+            ioExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // Rather than running it on the calling thread, which may be the UI thread
+            task.fail(e);
+        }
+        return task;
+    }
+
+    /**
+     * Spill entries evicted from memory cache into disk cache
+     * on a background thread, instead of on the thread calling {@code put}.
+     * <p>
+     * Entries waiting to be spilled are still returned by {@code get} methods.
+     * Does nothing if write-behind is already enabled.
+     *
+     * @param maxQueuedSize Max sum of the sizes (same unit as cache sizes)
+     *                      of entries waiting to be spilled. While it's exceeded,
+     *                      {@code put} blocks until the background thread catches up.
+     */
+    public synchronized void enableWriteBehind(long maxQueuedSize) {
+        if (mSpillQueue != null || mMemCache == null || mDiskCache == null) {
+            return;
+        }
+        mSpillQueue = new SpillQueue(maxQueuedSize, new SpillQueue.Writer() {
+            @Override
+            public void write(String key, MemCache.ValueWrapper value, long seq) {
+                writeSpill(key, value, seq);
+            }
+        });
+    }
+
+    /**
+     * Block until all entries waiting to be spilled are written into disk cache,
+     * and disk cache's journal records are written.
+     */
+    public void flush() {
+        SpillQueue spillQueue = mSpillQueue;
+        if (spillQueue != null) {
+            spillQueue.flush();
+        }
+        if (mDiskCache != null) {
+            mDiskCache.flush();
+        }
+    }
+
+    /**
+     * Write all entries waiting to be spilled and stop the background thread.
+     * <p>
+     * The cache is still usable afterwards, but spills are done synchronously again.
+     */
+    public synchronized void close() {
+        SpillQueue spillQueue = mSpillQueue;
+        if (spillQueue != null) {
+            mSpillQueue = null;
+            spillQueue.close();
+        }
+    }
+
     /**
      * Returns the current used size of the {@link #mMemCache},
      * or 0 if {@link #mMemCache} is null.
      */
-    public synchronized long memCacheSize() {
+    public long memCacheSize() {
         if (mMemCache != null) {
             return mMemCache.size();
         }
@@ -259,7 +898,7 @@ public class FusionCache extends AbstractCache {
      * Returns the max size of memory cache,
      * or 0 if {@link #mMemCache} is null.
      */
-    public synchronized long maxMemCacheSize() {
+    public long maxMemCacheSize() {
         if (mMemCache != null) {
             return mMemCache.maxSize();
         }
@@ -270,7 +909,7 @@ public class FusionCache extends AbstractCache {
      * Returns the current used size of the {@link #mDiskCache},
      * or 0 if {@link #mDiskCache} is null.
      */
-    public synchronized long diskCacheSize() {
+    public long diskCacheSize() {
         if (mDiskCache != null) {
             return mDiskCache.size();
         }
@@ -281,7 +920,7 @@ public class FusionCache extends AbstractCache {
      * Returns the max size of disk cache,
      * or 0 if {@link #mDiskCache} is null.
      */
-    public synchronized long maxDiskCacheSize() {
+    public long maxDiskCacheSize() {
         if (mDiskCache != null) {
             return mDiskCache.maxSize();
         }
@@ -294,19 +933,76 @@ public class FusionCache extends AbstractCache {
      */
     private void putInternal(String key, Object value) {
         checkFusionMode();
+        store(key, value, ANY_SEQ);
+    }
 
-        synchronized (this) {
-            if (mMemCache != null && MemoryUtils.sizeOf(value) <= maxMemCacheSize()) {
-                List<LruCacheWrapper.Entry<String, MemCache.ValueWrapper>> evictedList = putInMemLocked(key, value);
-                if (mDiskCache != null) {
-                    for (LruCacheWrapper.Entry<String, MemCache.ValueWrapper> entry : evictedList) {
-                        putInDiskLocked(entry.key, entry.value.obj);
-                    }
+    /**
+     * Put value into memory cache (or disk cache if it doesn't fit),
+     * unless the key was written after {@code seq}.
+     *
+     * @param seq A value read from {@link #mInvalidationSeq}, or {@link #ANY_SEQ}.
+     * @return False if the key was written after {@code seq} and nothing was stored.
+     */
+    private boolean store(String key, Object value, long seq) {
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(key);
+        // Weigh once, outside of the lock
+        int size = mMemCache != null ? mMemCache.weigh(value) : 0;
+        if (mMemCache != null && size <= maxMemCacheSize()) {
+            long spillSeq = mInvalidationSeq.get();
+            Evictions evictions = evictions();
+            stripe.lock();
+            try {
+                if (writtenAfterLocked(stripe, seq)) {
+                    return false;
+                }
+                putInMemLocked(key, value, size, evictions);
+                stripe.lastWriteSeq = mInvalidationSeq.incrementAndGet();
+            } finally {
+                stripe.unlock();
+            }
+            spillToDisk(evictions, spillSeq);
+        } else if (mDiskCache != null) {
+            stripe.lock();
+            try {
+                if (writtenAfterLocked(stripe, seq)) {
+                    return false;
+                }
+                SpillQueue spillQueue = mSpillQueue;
+                if (spillQueue != null) {
+                    spillQueue.remove(key);
                 }
-            } else if (mDiskCache != null) {
                 putInDiskLocked(key, value);
+                // Older spills of this key must not overwrite the new value
+                stripe.lastInvalidationSeq = mInvalidationSeq.incrementAndGet();
+                stripe.lastWriteSeq = stripe.lastInvalidationSeq;
+            } finally {
+                stripe.unlock();
             }
         }
+        return true;
+    }
+
+    /**
+     * Store a value returned by a loader, unless the key was written after {@code seq}.
+     *
+     * @return The value to return to the caller, which is the value written
+     * meanwhile if it's still in memory cache, otherwise {@code value}.
+     */
+    private <T> T storeLoaded(String key, Class<T> clz, T value, long seq) {
+        if (!store(key, value, seq) && mMemCache != null) {
+            T current = getFromMem(key, clz);
+            if (current != null) {
+                return current;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Only called while holding {@code stripe}.
+     */
+    private boolean writtenAfterLocked(KeyLockStripes.Stripe stripe, long seq) {
+        return stripe.lastWriteSeq > seq || mLastClearSeq > seq;
     }
 
     /**
@@ -314,72 +1010,246 @@ public class FusionCache extends AbstractCache {
      * called by every public {@code get} method.
      */
     private <T> T getInternal(String key, Class<T> clz) {
+        return getInternal(key, clz, null);
+    }
+
+    /**
+     * @param loader Used on miss, may be null.
+     */
+    private <T> T getInternal(String key, Class<T> clz, Loader<? extends T> loader) {
         checkFusionMode();
 
-        T result;
+        if (mMemCache != null) {
+            // Memory hits don't touch the key locks at all
+            T result = getFromMem(key, clz);
+            if (result != null) {
+                // Got in memory cache
+                return result;
+            }
+        }
 
-        synchronized (this) {
-            if (mMemCache != null) {
-                result = getFromMemLocked(key, clz);
-                if (result != null) {
-                    // Got in memory cache
-                    return result;
+        if (mDiskCache != null || loader != null) {
+            return getCoalesced(key, clz, loader);
+        }
+
+        // Got nothing
+        return null;
+    }
+
+    /**
+     * Load value on memory miss.
+     * <p>
+     * Concurrent calls for the same key and class share a single load,
+     * the first caller does the work and the others wait for its result.
+     */
+    private <T> T getCoalesced(String key, Class<T> clz, Loader<? extends T> loader) {
+        while (true) {
+            Load load = new Load(clz);
+            Load existing = mLoads.putIfAbsent(key, load);
+            if (existing == null) {
+                T result = null;
+                try {
+                    result = loadMiss(key, clz, loader);
+                } finally {
+                    mLoads.remove(key, load);
+                    load.complete(result);
                 }
+                return result;
             }
 
-            if (mDiskCache != null) {
-                result = getFromDiskLocked(key, clz);
-                if (result != null) {
-                    // Got in disk cache
-                    if (mMemCache != null) {
-                        putInMemLocked(key, result);
+            if (existing.clz != clz) {
+                // Loading as another type, which can't be shared, so do it alone
+                return loadMiss(key, clz, loader);
+            }
+            T result = clz.cast(existing.await());
+            if (result != null || loader == null) {
+                return result;
+            }
+            // The other caller had no loader or its loader failed, try to lead with ours
+        }
+    }
+
+    /**
+     * Load value from {@link #mSpillQueue} or disk cache and promote it into memory cache,
+     * or from {@code loader} and put it into cache.
+     * <p>
+     * Reading, decoding and loading happen without holding the key's lock,
+     * the lock is only taken to store the value,
+     * which is skipped if the key was written in the meantime.
+     */
+    private <T> T loadMiss(String key, Class<T> clz, Loader<? extends T> loader) {
+        long seq = mInvalidationSeq.get();
+
+        if (mMemCache != null) {
+            // A load that just finished may have promoted it
+            T result = getFromMem(key, clz);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        if (mDiskCache != null) {
+            T result = getFromSpillQueue(key, clz);
+            if (result == null) {
+                result = getFromDisk(key, clz);
+            }
+            if (result != null) {
+                // Got in disk cache
+                if (mMemCache != null) {
+                    promote(key, result, seq);
+                }
+                return result;
+            }
+        }
+
+        if (loader == null) {
+            return null;
+        }
+        T result = loader.load(key);
+        if (result == null) {
+            return null;
+        }
+        return storeLoaded(key, clz, result, seq);
+    }
+
+    /**
+     * Put a value got from disk into memory cache,
+     * unless the key was written after {@code seq}.
+     * <p>
+     * Only called when {@link #mMemCache} is not null.
+     */
+    private void promote(String key, Object value, long seq) {
+        int size = mMemCache.weigh(value);
+        Evictions evictions = evictions();
+        long spillSeq = 0;
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(key);
+        stripe.lock();
+        try {
+            if (!writtenAfterLocked(stripe, seq)) {
+                spillSeq = mInvalidationSeq.get();
+                putInMemLocked(key, value, size, evictions);
+            }
+        } finally {
+            stripe.unlock();
+        }
+
+        spillToDisk(evictions, spillSeq);
+    }
+
+    /**
+     * Like {@link #promote}, for a bitmap decoded by {@link #acquireBitmap(String)},
+     * which may go into the {@link BitmapPool} later.
+     * <p>
+     * Only called when {@link #mMemCache} is not null.
+     */
+    private void promoteAcquired(String key, Bitmap bitmap, long seq) {
+        int size = mMemCache.weigh(bitmap);
+        Evictions evictions = evictions();
+        long spillSeq = 0;
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(key);
+        stripe.lock();
+        try {
+            if (!writtenAfterLocked(stripe, seq)) {
+                spillSeq = mInvalidationSeq.get();
+                // Not cached if too large, then the caller owns it alone
+                mMemCache.putAcquired(key, bitmap, size, evictions);
+            }
+        } finally {
+            stripe.unlock();
+        }
+
+        spillToDisk(evictions, spillSeq);
+    }
+
+    /**
+     * Returns this thread's empty {@link Evictions}.
+     */
+    private static Evictions evictions() {
+        Evictions evictions = EVICTIONS.get();
+        // Left non-empty only if a previous put threw
+        evictions.clear();
+        return evictions;
+    }
+
+    /**
+     * Move entries evicted from memory cache into disk cache,
+     * or into {@link #mSpillQueue} if write-behind is enabled.
+     * <p>
+     * Never call this while holding a key lock.
+     * The collected entries are released from memory cache
+     * (which may pool their bitmaps) and cleared afterwards.
+     *
+     * @param seq Value of {@link #mInvalidationSeq} read before the entries were evicted.
+     */
+    private void spillToDisk(Evictions evictions, long seq) {
+        try {
+            SpillQueue spillQueue = mSpillQueue;
+            for (int i = 0; i < evictions.mCount; i++) {
+                String key = evictions.mKeys[i];
+                MemCache.ValueWrapper value = evictions.mValues[i];
+                if (mDiskCache != null) {
+                    if (spillQueue != null) {
+                        // May be written later and read from the queue meanwhile, never pool it
+                        value.share();
+                    }
+                    if (spillQueue == null || !spillQueue.offer(key, value, seq)) {
+                        writeSpill(key, value, seq);
                     }
-                    return result;
                 }
+                // Already know mMemCache != null if anything is evicted
+                mMemCache.release(value);
             }
+        } finally {
+            evictions.clear();
         }
+    }
 
-        // Got nothing
-        return null;
+    /**
+     * Write an evicted entry into disk cache while holding its own key's lock.
+     * The entry is dropped if the key was invalidated after {@code seq}.
+     */
+    private void writeSpill(String key, MemCache.ValueWrapper value, long seq) {
+        KeyLockStripes.Stripe stripe = mKeyLocks.forKey(key);
+        stripe.lock();
+        try {
+            if (stripe.lastInvalidationSeq <= seq && mLastClearSeq <= seq) {
+                putInDiskLocked(key, value.obj);
+                if (mLastClearSeq > seq) {
+                    // Cleared while writing, maybe before the write reached disk cache
+                    mDiskCache.remove(key);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
     }
 
     /**
      * Put value into memory cache.
      * <p>
-     * Only called when {@link #mMemCache} is not null.
+     * Only called when {@link #mMemCache} is not null,
+     * while holding the key's lock.
+     *
+     * @param size      Size of value got from {@link MemCache#weigh}.
+     * @param evictions Collects the entries evicted from memory cache.
      */
-    private List<LruCacheWrapper.Entry<String, MemCache.ValueWrapper>> putInMemLocked(String key, Object value) {
+    private void putInMemLocked(String key, Object value, int size, Evictions evictions) {
         // Already know mMemCache != null here
-        List<LruCacheWrapper.Entry<String, MemCache.ValueWrapper>> evictedList = new ArrayList<>();
-        mMemCache.put(key, value, evictedList);
+        mMemCache.put(key, value, size, evictions);
         if (DEBUG) {
-            Log.d(LOG_TAG, "putInMemLocked: {" + key + ": " + value + "}, " + "evictedList: " + evictedList);
+            Log.d(LOG_TAG, "putInMemLocked: {" + key + ": " + value + "}, " + "evicted: " + evictions.mCount);
         }
-        return evictedList;
     }
 
     /**
      * Put value into disk cache.
      * <p>
-     * Only called when {@link #mDiskCache} is not null.
+     * Only called when {@link #mDiskCache} is not null,
+     * while holding the key's lock.
      */
     private void putInDiskLocked(String key, Object value) {
         // Already know mDiskCache != null here
-        if (value instanceof String) {
-            mDiskCache.put(key, (String) value);
-        } else if (value instanceof JSONObject) {
-            mDiskCache.put(key, (JSONObject) value);
-        } else if (value instanceof JSONArray) {
-            mDiskCache.put(key, (JSONArray) value);
-        } else if (value instanceof byte[]) {
-            mDiskCache.put(key, (byte[]) value);
-        } else if (value instanceof Bitmap) {
-            mDiskCache.put(key, (Bitmap) value);
-        } else if (value instanceof Drawable) {
-            mDiskCache.put(key, (Drawable) value);
-        } else if (value instanceof Serializable) {
-            mDiskCache.put(key, (Serializable) value);
-        }
+        mDiskCache.put(key, value);
     }
 
     /**
@@ -387,39 +1257,55 @@ public class FusionCache extends AbstractCache {
      * <p>
      * Only called when {@link #mMemCache} is not null.
      */
-    private <T> T getFromMemLocked(String key, Class<T> clz) {
+    private <T> T getFromMem(String key, Class<T> clz) {
         // Already know mMemCache != null here
         return mMemCache.get(key, clz);
     }
 
+    /**
+     * Get a {@code byte[]} value from memory cache or {@link #mSpillQueue}.
+     */
+    private byte[] getCachedBytesInMem(String key) {
+        byte[] bytes = null;
+        if (mMemCache != null) {
+            bytes = getFromMem(key, byte[].class);
+        }
+        if (bytes == null) {
+            bytes = getFromSpillQueue(key, byte[].class);
+        }
+        return bytes;
+    }
+
+    /**
+     * Get value from {@link #mSpillQueue}, if it's waiting to be spilled.
+     */
+    private <T> T getFromSpillQueue(String key, Class<T> clz) {
+        SpillQueue spillQueue = mSpillQueue;
+        if (spillQueue == null) {
+            return null;
+        }
+        MemCache.ValueWrapper wrapper = spillQueue.get(key);
+        if (wrapper == null || !clz.isInstance(wrapper.obj)) {
+            return null;
+        }
+        return clz.cast(wrapper.obj);
+    }
+
     /**
      * Get value from disk cache.
      * <p>
      * Only called when {@link #mDiskCache} is not null.
      */
-    private <T> T getFromDiskLocked(String key, Class<T> clz) {
+    private <T> T getFromDisk(String key, Class<T> clz) {
         // Already know mDiskCache != null here
-        if (clz == String.class) {
-            return clz.cast(mDiskCache.getString(key));
-        } else if (clz == JSONObject.class) {
-            return clz.cast(mDiskCache.getJSONObject(key));
-        } else if (clz == JSONArray.class) {
-            return clz.cast(mDiskCache.getJSONArray(key));
-        } else if (clz == byte[].class) {
-            return clz.cast(mDiskCache.getBytes(key));
-        } else if (clz == Bitmap.class) {
-            return clz.cast(mDiskCache.getBitmap(key));
-        } else if (clz == Drawable.class) {
+        if (clz == Drawable.class) {
+            // Decode with resources to get the right density
             Context context = mAppContextRef.get();
             if (context != null) {
                 return clz.cast(mDiskCache.getDrawable(key, context.getResources()));
-            } else {
-                return clz.cast(mDiskCache.getDrawable(key));
             }
-        } else if (clz == Serializable.class) {
-            return clz.cast(mDiskCache.getSerializable(key));
         }
-        return null;
+        return mDiskCache.get(key, clz);
     }
 
     /**
@@ -431,4 +1317,135 @@ public class FusionCache extends AbstractCache {
             throw new IllegalStateException("Fusion mode is not enabled.");
         }
     }
+
+    /**
+     * Loads a value on cache miss, see {@link #get(String, Class, Loader)}.
+     */
+    public interface Loader<T> {
+        /**
+         * May block, called without holding any lock of the cache.
+         *
+         * @return The value, or null if it can't be loaded, then nothing is cached.
+         */
+        T load(String key);
+    }
+
+    /**
+     * Loads values on cache miss in batch, see {@link #getAll(Collection, Class, BulkLoader)}.
+     */
+    public interface BulkLoader<T> {
+        /**
+         * May block, called without holding any lock of the cache.
+         *
+         * @param keys Keys that are missing from cache, never empty.
+         * @return Values of the keys that can be loaded,
+         * keys absent from the map (or mapped to null) are not cached.
+         */
+        Map<String, T> loadAll(List<String> keys);
+    }
+
+    /**
+     * Receives the outcome of an asynchronous operation,
+     * see {@link #getAsync(String, Class, Callback)}.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * Called if the operation threw, for example if a {@link Loader} failed.
+         */
+        void onFailure(Throwable t);
+    }
+
+    /**
+     * Names the threads of the default IO executor.
+     */
+    private static class IOThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "FusionCache-IO-" + mCount.incrementAndGet());
+        }
+    }
+
+    /**
+     * Collects the entries evicted by a memory put, to be spilled
+     * after the key lock is released.
+     * <p>
+     * Arrays grow on demand and are kept for reuse by the same thread.
+     */
+    private static final class Evictions implements EvictionSink<String, MemCache.ValueWrapper> {
+        private static final int INITIAL_CAPACITY = 4;
+
+        String[] mKeys;
+        MemCache.ValueWrapper[] mValues;
+        int mCount;
+
+        @Override
+        public void onEvicted(String key, MemCache.ValueWrapper value) {
+            if (mKeys == null) {
+                mKeys = new String[INITIAL_CAPACITY];
+                mValues = new MemCache.ValueWrapper[INITIAL_CAPACITY];
+            } else if (mCount == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mCount * 2);
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mKeys[mCount] = key;
+            mValues[mCount] = value;
+            mCount++;
+        }
+
+        /**
+         * Drop references to the collected entries, so they can be collected.
+         */
+        void clear() {
+            for (int i = 0; i < mCount; i++) {
+                mKeys[i] = null;
+                mValues[i] = null;
+            }
+            mCount = 0;
+        }
+    }
+
+    /**
+     * A load in progress, whose result is shared by concurrent callers.
+     */
+    private static final class Load {
+        final Class<?> clz;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * Published by {@link #mDone}.
+         */
+        private Object mResult;
+
+        Load(Class<?> clz) {
+            this.clz = clz;
+        }
+
+        void complete(Object result) {
+            mResult = result;
+            mDone.countDown();
+        }
+
+        /**
+         * Wait for the result, or null if the load failed.
+         */
+        Object await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mResult;
+        }
+    }
 }
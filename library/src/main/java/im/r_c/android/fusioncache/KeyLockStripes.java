@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FusionCache
+ * <p>
+ * A fixed set of locks that keys are hashed onto,
+ * so that operations on the same key are serialized
+ * while operations on different keys (almost always) run in parallel.
+ * <p>
+ * Never hold more than one stripe at a time
+ * (except taking all of them in the order of {@link #all()}),
+ * or two threads may deadlock on each other's stripes.
+ */
+class KeyLockStripes {
+    static final int DEFAULT_STRIPE_COUNT = 64;
+
+    private final Stripe[] mStripes;
+    private final int mMask;
+
+    KeyLockStripes() {
+        this(DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * @param stripeCount Number of locks, rounded up to a power of two.
+     */
+    KeyLockStripes(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount <= 0");
+        }
+        int count = Integer.highestOneBit(stripeCount);
+        if (count < stripeCount) {
+            count <<= 1;
+        }
+        mStripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            mStripes[i] = new Stripe();
+        }
+        mMask = count - 1;
+    }
+
+    /**
+     * Returns the stripe guarding {@code key}.
+     */
+    Stripe forKey(String key) {
+        int h = key.hashCode();
+        // Spread higher bits downwards, like HashMap does
+        h ^= (h >>> 16);
+        return mStripes[h & mMask];
+    }
+
+    /**
+     * Returns all stripes, used by operations that touch every key.
+     */
+    Stripe[] all() {
+        return mStripes;
+    }
+
+    /**
+     * A lock of one stripe.
+     */
+    static final class Stripe extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Sequence number of the last invalidating operation
+         * (like {@code remove}) on any key of this stripe.
+         * <p>
+         * Guarded by this lock.
+         */
+        long lastInvalidationSeq;
+
+        /**
+         * Sequence number of the last writing operation
+         * (including invalidating ones) on any key of this stripe.
+         * <p>
+         * Guarded by this lock.
+         */
+        long lastWriteSeq;
+    }
+}
@@ -47,10 +47,18 @@ import java.util.Map;
  * <p>
  * Uses {@code long} to maintain {@code size} and {@code maxSize}, so that it can handle a larger size
  * (while the sizes of values are calculated in bytes).
+ * <p>
+ * Evicts the least recently used entries by default,
+ * or lets an {@link EvictionPolicy} choose.
  */
 public class LruCache<K, V> {
     private final LinkedHashMap<K, V> map;
 
+    /**
+     * Chooses entries to evict, or null to evict the eldest entry of the access-ordered {@code map}.
+     */
+    private final EvictionPolicy<K> policy;
+
     /**
      * Size of this cache in units. Not necessarily the number of elements.
      */
@@ -69,11 +77,24 @@ public class LruCache<K, V> {
      *                this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(long maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *                the maximum number of entries in the cache. For all other caches,
+     *                this is the maximum sum of the sizes of the entries in this cache.
+     * @param policy  chooses entries to evict, null for least recently used.
+     *                Must not be shared with other caches.
+     */
+    public LruCache(long maxSize, EvictionPolicy<K> policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<>(0, 0.75f, true);
+        this.policy = policy;
+        // With a policy the order of map doesn't matter, so don't reorder on access
+        this.map = new LinkedHashMap<>(0, 0.75f, policy == null);
     }
 
     /**
@@ -108,6 +129,9 @@ public class LruCache<K, V> {
             mapValue = map.get(key);
             if (mapValue != null) {
                 hitCount++;
+                if (policy != null) {
+                    policy.onAccess(key);
+                }
                 return mapValue;
             }
             missCount++;
@@ -133,7 +157,11 @@ public class LruCache<K, V> {
                 // There was a conflict so undo that last put
                 map.put(key, mapValue);
             } else {
-                size += safeSizeOf(key, createdValue);
+                int createdSize = safeSizeOf(key, createdValue);
+                size += createdSize;
+                if (policy != null) {
+                    policy.onInsert(key, createdSize);
+                }
             }
         }
 
@@ -153,6 +181,16 @@ public class LruCache<K, V> {
      * @return the previous value mapped by {@code key}.
      */
     public final V put(K key, V value) {
+        return put(key, value, null);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, reporting the entries
+     * evicted by this call to {@code sink}.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    final V put(K key, V value, EvictionSink<K, V> sink) {
         if (key == null || value == null) {
             throw new NullPointerException("key == null || value == null");
         }
@@ -160,18 +198,25 @@ public class LruCache<K, V> {
         V previous;
         synchronized (this) {
             putCount++;
-            size += safeSizeOf(key, value);
+            int valueSize = safeSizeOf(key, value);
+            size += valueSize;
             previous = map.put(key, value);
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
             }
+            if (policy != null) {
+                if (previous != null) {
+                    policy.onRemove(key);
+                }
+                policy.onInsert(key, valueSize);
+            }
         }
 
         if (previous != null) {
             entryRemoved(false, key, previous, value);
         }
 
-        trimToSize(maxSize);
+        trimToSize(maxSize, sink);
         return previous;
     }
 
@@ -183,12 +228,20 @@ public class LruCache<K, V> {
      *                to evict even 0-sized elements.
      */
     public void trimToSize(long maxSize) {
+        trimToSize(maxSize, null);
+    }
+
+    /**
+     * Like {@link #trimToSize(long)}, also reporting every entry
+     * evicted by this call to {@code sink}, if it's not null.
+     */
+    void trimToSize(long maxSize, EvictionSink<K, V> sink) {
         while (true) {
             K key;
             V value;
             synchronized (this) {
                 if (size < 0 || (map.isEmpty() && size != 0)) {
-                    throw new IllegalStateException(getClass().getName()
+                    throw new InconsistentSizeException(getClass().getName()
                             + ".sizeOf() is reporting inconsistent results!");
                 }
 
@@ -196,15 +249,27 @@ public class LruCache<K, V> {
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
+                if (policy == null) {
+                    Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
+                    key = toEvict.getKey();
+                    value = toEvict.getValue();
+                } else {
+                    key = policy.victim();
+                    value = map.get(key);
+                    if (value == null) {
+                        throw new IllegalStateException(policy.getClass().getName()
+                                + ".victim() returned a key not in the cache: " + key);
+                    }
+                }
                 map.remove(key);
                 size -= safeSizeOf(key, value);
                 evictionCount++;
             }
 
             entryRemoved(true, key, value, null);
+            if (sink != null) {
+                sink.onEvicted(key, value);
+            }
         }
     }
 
@@ -223,6 +288,9 @@ public class LruCache<K, V> {
             previous = map.remove(key);
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
+                if (policy != null) {
+                    policy.onRemove(key);
+                }
             }
         }
 
@@ -273,7 +341,7 @@ public class LruCache<K, V> {
     private int safeSizeOf(K key, V value) {
         int result = sizeOf(key, value);
         if (result < 0) {
-            throw new IllegalStateException("Negative size: " + key + "=" + value);
+            throw new InconsistentSizeException("Negative size: " + key + "=" + value);
         }
         return result;
     }
@@ -353,7 +421,8 @@ public class LruCache<K, V> {
 
     /**
      * Returns a copy of the current contents of the cache, ordered from least
-     * recently accessed to most recently accessed.
+     * recently accessed to most recently accessed
+     * (or by insertion, if an {@link EvictionPolicy} is used).
      */
     public synchronized final Map<K, V> snapshot() {
         return new LinkedHashMap<>(map);
@@ -366,4 +435,16 @@ public class LruCache<K, V> {
         return String.format(Locale.US, "LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
                 maxSize, hitCount, missCount, hitPercent);
     }
+
+    /**
+     * Thrown when {@link #sizeOf} gives a negative size,
+     * or sizes that don't add up to what the cache recorded.
+     */
+    static class InconsistentSizeException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        InconsistentSizeException(String message) {
+            super(message);
+        }
+    }
 }
@@ -21,8 +21,6 @@
 
 package im.r_c.android.fusioncache;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,11 +30,13 @@ import java.util.Map;
  * A wrapper class of {@link ExtendedLruCache} which is a subclass
  * of {@code LruCache}, providing a little more features than {@code LruCache}.
  * <p>
- * This class is <b>NOT</b> thread-safe.
+ * Thread-safe, since {@code LruCache} guards its own state
+ * and evicted entries are reported to a sink passed with each put,
+ * instead of through state shared between calls.
  *
  * @author Richard Chien
  */
-class LruCacheWrapper<K, V> {
+class LruCacheWrapper<K, V> implements CacheWrapper<K, V> {
 
     /**
      * Extended LRU cache which handles the main cache actions.
@@ -54,10 +54,18 @@ class LruCacheWrapper<K, V> {
      * @param maxSize The maximum sum of the sizes of the entries in this cache.
      */
     public LruCacheWrapper(long maxSize, Delegate<K, V> delegate) {
+        this(maxSize, delegate, null);
+    }
+
+    /**
+     * @param maxSize The maximum sum of the sizes of the entries in this cache.
+     * @param policy  Chooses entries to evict, null for least recently used.
+     */
+    public LruCacheWrapper(long maxSize, Delegate<K, V> delegate, EvictionPolicy<K> policy) {
         if (delegate == null) {
             throw new IllegalArgumentException("Delegate can't be null.");
         }
-        mLruCache = new ExtendedLruCache<>(maxSize, delegate);
+        mLruCache = new ExtendedLruCache<>(maxSize, delegate, policy);
         mDelegate = delegate;
     }
 
@@ -67,11 +75,11 @@ class LruCacheWrapper<K, V> {
      *
      * @return The previous value mapped by {@code key}.
      */
+    @Override
     public final V put(K key, V value) {
         if (mDelegate.sizeOf(key, value) > maxSize()) {
             throw new IllegalArgumentException("Object is bigger than max cache size.");
         }
-        mLruCache.mMarkRecentlyEvicted = false;
         return mLruCache.put(key, value);
     }
 
@@ -79,21 +87,15 @@ class LruCacheWrapper<K, V> {
      * Caches {@code value} for {@code key}.
      * The value is moved to the head of the queue.
      *
-     * @param evictedEntryList A list used to store evicted entries.
+     * @param sink Receives the entries evicted by this call, may be null.
      * @return The previous value mapped by {@code key}.
      */
-    public final V put(K key, V value, List<Entry<K, V>> evictedEntryList) {
+    @Override
+    public final V put(K key, V value, EvictionSink<K, V> sink) {
         if (mDelegate.sizeOf(key, value) > maxSize()) {
             throw new IllegalArgumentException("Object is bigger than max cache size.");
         }
-        mLruCache.mRecentlyEvictedEntryList.clear();
-        mLruCache.mMarkRecentlyEvicted = true;
-        V result = mLruCache.put(key, value);
-        if (evictedEntryList != null) {
-            evictedEntryList.addAll(mLruCache.mRecentlyEvictedEntryList);
-        }
-        mLruCache.mRecentlyEvictedEntryList.clear();
-        return result;
+        return mLruCache.put(key, value, sink);
     }
 
     /**
@@ -102,6 +104,7 @@ class LruCacheWrapper<K, V> {
      * head of the queue. This returns null if a value is not cached and cannot
      * be created.
      */
+    @Override
     public final V get(K key) {
         return mLruCache.get(key);
     }
@@ -111,6 +114,7 @@ class LruCacheWrapper<K, V> {
      *
      * @return The previous value mapped by {@code key}.
      */
+    @Override
     public final V remove(K key) {
         return mLruCache.remove(key);
     }
@@ -118,6 +122,7 @@ class LruCacheWrapper<K, V> {
     /**
      * Clear the cache, calling {@link ExtendedLruCache#evictAll}.
      */
+    @Override
     public final void evictAll() {
         mLruCache.evictAll();
     }
@@ -125,6 +130,7 @@ class LruCacheWrapper<K, V> {
     /**
      * Returns the sum of the sizes of the entries in this cache.
      */
+    @Override
     public final long size() {
         return mLruCache.size();
     }
@@ -132,6 +138,7 @@ class LruCacheWrapper<K, V> {
     /**
      * Returns the maximum sum of the sizes of the entries in this cache.
      */
+    @Override
     public final long maxSize() {
         return mLruCache.maxSize();
     }
@@ -140,6 +147,7 @@ class LruCacheWrapper<K, V> {
      * Returns a copy of the current contents of the cache, ordered from least
      * recently accessed to most recently accessed.
      */
+    @Override
     public final Map<K, V> snapshot() {
         return mLruCache.snapshot();
     }
@@ -152,7 +160,7 @@ class LruCacheWrapper<K, V> {
     }
 
     /**
-     * Extended LRU cache that marks the recently evicted entries.
+     * Extended LRU cache that calls the delegate methods.
      */
     private static class ExtendedLruCache<K, V> extends LruCache<K, V> {
         /**
@@ -160,33 +168,19 @@ class LruCacheWrapper<K, V> {
          * <p>
          * Never be null.
          */
-        Delegate<K, V> mDelegate;
-
-        /**
-         * List used to mark recently evicted entries.
-         */
-        List<Entry<K, V>> mRecentlyEvictedEntryList = new ArrayList<>();
+        final Delegate<K, V> mDelegate;
 
-        /**
-         * Indicate whether to mark recently evicted entries.
-         */
-        boolean mMarkRecentlyEvicted = false;
-
-        public ExtendedLruCache(long maxSize, Delegate<K, V> delegate) {
-            super(maxSize);
+        public ExtendedLruCache(long maxSize, Delegate<K, V> delegate, EvictionPolicy<K> policy) {
+            super(maxSize, policy);
             mDelegate = delegate;
         }
 
         /**
-         * Override to mark recently evicted entries,
-         * and call the wrapper method which may be override by subclass.
+         * Call the wrapper method which may be override by subclass.
          */
         @Override
         protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
             super.entryRemoved(evicted, key, oldValue, newValue);
-            if (evicted && mMarkRecentlyEvicted) {
-                mRecentlyEvictedEntryList.add(new Entry<>(key, oldValue));
-            }
             mDelegate.entryRemoved(evicted, key, oldValue, newValue);
         }
 
@@ -199,14 +193,16 @@ class LruCacheWrapper<K, V> {
         }
 
         /**
-         * Change the super class's description of exception.
+         * Change the super class's description of inconsistent sizes,
+         * which mean a cached object was modified. Other errors,
+         * like a broken {@link EvictionPolicy}, are thrown as they are.
          */
         @Override
-        public void trimToSize(long maxSize) {
+        void trimToSize(long maxSize, EvictionSink<K, V> sink) {
             try {
-                super.trimToSize(maxSize);
-            } catch (IllegalStateException e) {
-                throw new IllegalStateException("Cache object was modified without calling put() again.");
+                super.trimToSize(maxSize, sink);
+            } catch (InconsistentSizeException e) {
+                throw new IllegalStateException("Cache object was modified without calling put() again.", e);
             }
         }
     }
@@ -28,10 +28,11 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.Serializable;
-import java.util.List;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Map;
 
-import im.r_c.android.fusioncache.util.MemoryUtils;
 
 /**
  * FusionCache
@@ -48,11 +49,92 @@ public class MemCache extends AbstractCache {
      * <p>
      * Keeps strong references to objects so that
      * the objects can be cached in memory.
+     * <p>
+     * Always thread-safe.
+     */
+    private CacheWrapper<String, ValueWrapper> mCacheWrapper;
+
+    /**
+     * Estimates sizes of values.
+     */
+    private volatile Weigher<Object> mWeigher = new DefaultWeigher();
+
+    /**
+     * Receives bitmaps no longer referenced, null if disabled.
+     */
+    private volatile BitmapPool mBitmapPool;
+
+    /**
+     * Wrappers of the bitmaps that may go into {@link #mBitmapPool}, by bitmap,
+     * to find them on {@link #releaseBitmap(Bitmap)}.
+     */
+    private final Map<Bitmap, ValueWrapper> mTracked =
+            Collections.synchronizedMap(new IdentityHashMap<Bitmap, ValueWrapper>());
+
+    /**
+     * Releases entries evicted by puts that don't collect them.
      */
-    private LruCacheWrapper<String, ValueWrapper> mCacheWrapper;
+    private final EvictionSink<String, ValueWrapper> mReleasingSink = new EvictionSink<String, ValueWrapper>() {
+        @Override
+        public void onEvicted(String key, ValueWrapper value) {
+            release(value);
+        }
+    };
 
     public MemCache(long maxCacheSize) {
-        mCacheWrapper = new LruCacheWrapper<>(maxCacheSize, new LruCacheDelegate());
+        // Set concurrent to default value false
+        this(maxCacheSize, false);
+    }
+
+    /**
+     * @param concurrent Whether to use a {@link ConcurrentLruCacheWrapper},
+     *                   whose reads don't block each other and scale with cores,
+     *                   at the cost of a slightly approximate LRU order.
+     *                   Otherwise an exact, fully synchronized LRU cache is used.
+     */
+    public MemCache(long maxCacheSize, boolean concurrent) {
+        if (concurrent) {
+            mCacheWrapper = new ConcurrentLruCacheWrapper<>(maxCacheSize, new LruCacheDelegate());
+        } else {
+            mCacheWrapper = new LruCacheWrapper<>(maxCacheSize, new LruCacheDelegate());
+        }
+    }
+
+    /**
+     * @param policy Chooses entries to evict, like {@link TinyLfuPolicy}, {@link SlruPolicy},
+     *               {@link TwoQueuePolicy}, {@link ArcPolicy} or {@link ClockPolicy},
+     *               or null for least recently used.
+     *               Must not be shared with other caches.
+     */
+    public MemCache(long maxCacheSize, EvictionPolicy<String> policy) {
+        mCacheWrapper = new LruCacheWrapper<>(maxCacheSize, new LruCacheDelegate(), policy);
+    }
+
+    /**
+     * Set the {@link Weigher} estimating sizes of values put afterwards,
+     * {@link DefaultWeigher} by default.
+     * Sizes of values already cached don't change.
+     */
+    public void setWeigher(Weigher<Object> weigher) {
+        if (weigher == null) {
+            throw new IllegalArgumentException("Weigher can't be null.");
+        }
+        mWeigher = weigher;
+    }
+
+    /**
+     * Set the pool receiving bitmaps evicted from this cache,
+     * if they were acquired through {@link #acquireBitmap(String)} only
+     * and all released, disabled by default.
+     *
+     * @param pool The pool, or null to disable.
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
     @Override
@@ -129,28 +211,71 @@ public class MemCache extends AbstractCache {
         return get(key, Serializable.class);
     }
 
+    /**
+     * Get a bitmap, holding a reference to it until {@link #releaseBitmap(Bitmap)}.
+     * <p>
+     * A bitmap decoded by the cache itself goes into the {@link BitmapPool}
+     * once it's evicted and every reference is released,
+     * so it must not be used after releasing.
+     * Any other way of getting it keeps it out of the pool.
+     */
+    public Bitmap acquireBitmap(String key) {
+        ValueWrapper wrapper = mCacheWrapper.get(key);
+        if (wrapper == null || !(wrapper.obj instanceof Bitmap) || !wrapper.retain()) {
+            return null;
+        }
+        return (Bitmap) wrapper.obj;
+    }
+
+    /**
+     * Release a bitmap got from {@link #acquireBitmap(String)}.
+     * Other bitmaps are ignored.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        ValueWrapper wrapper = mTracked.get(bitmap);
+        if (wrapper != null) {
+            onReleased(wrapper, wrapper.releaseAcquired());
+        }
+    }
+
     @Override
-    public synchronized Object remove(String key) {
+    public Object remove(String key) {
         return mCacheWrapper.remove(key);
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
+        Map<String, ValueWrapper> snapshot = mCacheWrapper.snapshot();
         mCacheWrapper.evictAll();
+        for (ValueWrapper wrapper : snapshot.values()) {
+            // Fine even if it was evicted and released meanwhile
+            release(wrapper);
+        }
     }
 
     @Override
-    public synchronized long size() {
+    public long size() {
         return mCacheWrapper.size();
     }
 
     @Override
-    public synchronized long maxSize() {
+    public long maxSize() {
         return mCacheWrapper.maxSize();
     }
 
-    synchronized Map<String, ValueWrapper> snapshot() {
-        return mCacheWrapper.snapshot();
+    /**
+     * Values in the snapshot are shared, see {@link ValueWrapper#share()}.
+     */
+    Map<String, ValueWrapper> snapshot() {
+        Map<String, ValueWrapper> snapshot = mCacheWrapper.snapshot();
+        Iterator<ValueWrapper> iterator = snapshot.values().iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().share()) {
+                // Evicted into the pool meanwhile
+                iterator.remove();
+            }
+        }
+        return snapshot;
     }
 
     /**
@@ -160,26 +285,94 @@ public class MemCache extends AbstractCache {
      * <p>
      * Only used in this package.
      *
-     * @param evictedEntryList A list used to store evicted entries.
+     * @param sink Receives the entries evicted by this call, may be null.
      * @return The previous value mapped by {@code key}.
      */
-    synchronized Object put(String key, Object value, List<LruCacheWrapper.Entry<String, ValueWrapper>> evictedEntryList) {
-        int size = MemoryUtils.sizeOf(value);
+    Object put(String key, Object value, EvictionSink<String, ValueWrapper> sink) {
+        return put(key, value, weigh(value), sink);
+    }
+
+    /**
+     * Like {@link #put(String, Object, EvictionSink)},
+     * with {@code size} already got from {@link #weigh}.
+     * <p>
+     * Only used in this package.
+     */
+    Object put(String key, Object value, int size, EvictionSink<String, ValueWrapper> sink) {
         if (size <= maxSize()) {
-            return mCacheWrapper.put(key, new ValueWrapper(value, size), evictedEntryList);
+            return mCacheWrapper.put(key, new ValueWrapper(value, size), sink != null ? sink : mReleasingSink);
         }
         return null;
     }
 
+    /**
+     * Put a bitmap decoded by the cache itself,
+     * already acquired for the caller, see {@link #acquireBitmap(String)}.
+     * <p>
+     * Entries evicted into {@code sink} must be released by {@link #release(ValueWrapper)}.
+     * <p>
+     * Only used in this package.
+     *
+     * @return Whether it's cached, otherwise the caller owns it alone.
+     */
+    boolean putAcquired(String key, Bitmap bitmap, int size, EvictionSink<String, ValueWrapper> sink) {
+        if (size > maxSize()) {
+            return false;
+        }
+        ValueWrapper wrapper = new ValueWrapper(bitmap, size);
+        wrapper.track();
+        mTracked.put(bitmap, wrapper);
+        mCacheWrapper.put(key, wrapper, sink != null ? sink : mReleasingSink);
+        return true;
+    }
+
+    /**
+     * Drop the reference of the cache to the value,
+     * putting it into the {@link BitmapPool} if it was the last one of a poolable bitmap.
+     * Calling it more than once is harmless.
+     * <p>
+     * Called for every entry evicted into a sink given to {@code put},
+     * once the sink is done with it.
+     * <p>
+     * Only used in this package.
+     */
+    void release(ValueWrapper wrapper) {
+        onReleased(wrapper, wrapper.uncache());
+    }
+
+    private void onReleased(ValueWrapper wrapper, int state) {
+        if (state == ValueWrapper.ALIVE) {
+            return;
+        }
+        mTracked.remove(wrapper.obj);
+        BitmapPool pool = mBitmapPool;
+        if (state == ValueWrapper.POOLABLE && pool != null) {
+            pool.put((Bitmap) wrapper.obj);
+        }
+    }
+
+    /**
+     * Returns the size of {@code value} estimated by current {@link Weigher}.
+     * <p>
+     * Only used in this package.
+     */
+    int weigh(Object value) {
+        int size = mWeigher.weigh(value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + value);
+        }
+        return size;
+    }
+
     /**
      * Special get method.
      * Get value by class passed in.
      * <p>
      * Only used in this package.
      */
-    synchronized <T> T get(String key, Class<T> clz) {
+    <T> T get(String key, Class<T> clz) {
         ValueWrapper wrapper = mCacheWrapper.get(key);
-        if (wrapper == null || !clz.isInstance(wrapper.obj)) {
+        if (wrapper == null || !clz.isInstance(wrapper.obj) || !wrapper.share()) {
             return null;
         }
         return clz.cast(wrapper.obj);
@@ -191,14 +384,100 @@ public class MemCache extends AbstractCache {
      * and sizes of objects.
      */
     static class ValueWrapper {
+        static final int ALIVE = 0;
+        static final int DEAD = 1;
+        static final int POOLABLE = 2;
+
         Object obj;
         int size;
 
+        /**
+         * Only bitmaps decoded by the cache itself are tracked,
+         * and may be pooled once they are neither cached (or being spilled) nor acquired.
+         * Other values are never pooled.
+         * <p>
+         * These are guarded by this wrapper.
+         */
+        private boolean tracked;
+        private boolean cached;
+        private int acquiredCount;
+        private boolean poolable;
+
         public ValueWrapper(Object obj, int size) {
             this.obj = obj;
             this.size = size;
         }
 
+        /**
+         * Start tracking, as cached and acquired once.
+         */
+        synchronized void track() {
+            tracked = true;
+            cached = true;
+            acquiredCount = 1;
+            poolable = true;
+        }
+
+        /**
+         * @return False if it's already released and maybe reused.
+         */
+        synchronized boolean retain() {
+            if (!tracked) {
+                // Never pooled, nothing to count
+                return true;
+            }
+            if (isDead()) {
+                return false;
+            }
+            acquiredCount++;
+            return true;
+        }
+
+        synchronized int releaseAcquired() {
+            if (!tracked || acquiredCount == 0) {
+                return ALIVE;
+            }
+            acquiredCount--;
+            return state();
+        }
+
+        synchronized int uncache() {
+            if (!tracked || !cached) {
+                return ALIVE;
+            }
+            cached = false;
+            return state();
+        }
+
+        /**
+         * Mark the value as referenced by someone not counted,
+         * so it's never pooled.
+         *
+         * @return False if it's already released and maybe reused.
+         */
+        synchronized boolean share() {
+            if (tracked && isDead()) {
+                return false;
+            }
+            poolable = false;
+            return true;
+        }
+
+        /**
+         * @return {@link #ALIVE} if there are references left, otherwise
+         * {@link #POOLABLE} if it should be pooled or {@link #DEAD} if not.
+         */
+        private int state() {
+            if (!isDead()) {
+                return ALIVE;
+            }
+            return poolable ? POOLABLE : DEAD;
+        }
+
+        private boolean isDead() {
+            return !cached && acquiredCount == 0;
+        }
+
         @Override
         public String toString() {
             return "ValueWrapper{" +
@@ -211,7 +490,7 @@ public class MemCache extends AbstractCache {
     /**
      * Implements some delegate methods of {@code LruCache}.
      */
-    private static class LruCacheDelegate implements LruCacheWrapper.Delegate<String, ValueWrapper> {
+    private class LruCacheDelegate implements LruCacheWrapper.Delegate<String, ValueWrapper> {
 
         @Override
         public int sizeOf(String key, ValueWrapper valueWrapper) {
@@ -220,6 +499,14 @@ public class MemCache extends AbstractCache {
 
         @Override
         public void entryRemoved(boolean evicted, String key, ValueWrapper oldValue, ValueWrapper newValue) {
+            // Evicted ones are released by the sink that got them
+            if (!evicted) {
+                if (newValue == null) {
+                    // Removed, and returned to the caller of remove
+                    oldValue.share();
+                }
+                release(oldValue);
+            }
         }
     }
 }
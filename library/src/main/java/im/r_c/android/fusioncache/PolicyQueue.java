@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+/**
+ * FusionCache
+ * <p>
+ * An intrusive doubly linked queue of keys and their sizes,
+ * ordered from least recently used (head) to most recently used (tail),
+ * used by {@link EvictionPolicy} implementations to keep
+ * their segments without allocating on moves.
+ * <p>
+ * A node belongs to at most one queue at a time.
+ * <p>
+ * This class is <b>NOT</b> thread-safe.
+ */
+final class PolicyQueue<K> {
+    private final Node<K> mHead = new Node<>(null, 0);
+    private long mWeight;
+    private int mCount;
+
+    PolicyQueue() {
+        mHead.prev = mHead;
+        mHead.next = mHead;
+    }
+
+    /**
+     * Sum of the sizes of the nodes in this queue.
+     */
+    long weight() {
+        return mWeight;
+    }
+
+    int count() {
+        return mCount;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Returns the least recently used node, or null if empty.
+     */
+    Node<K> peekFirst() {
+        return mHead.next == mHead ? null : mHead.next;
+    }
+
+    /**
+     * Add {@code node} as the most recently used one,
+     * removing it from its previous queue first.
+     */
+    void addLast(Node<K> node) {
+        if (node.queue != null) {
+            node.queue.remove(node);
+        }
+        Node<K> last = mHead.prev;
+        node.prev = last;
+        node.next = mHead;
+        last.next = node;
+        mHead.prev = node;
+        node.queue = this;
+        mWeight += node.size;
+        mCount++;
+    }
+
+    /**
+     * Remove {@code node}, which must belong to this queue.
+     */
+    void remove(Node<K> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.queue = null;
+        mWeight -= node.size;
+        mCount--;
+    }
+
+    /**
+     * Remove and return the least recently used node, or null if empty.
+     */
+    Node<K> pollFirst() {
+        Node<K> first = peekFirst();
+        if (first != null) {
+            remove(first);
+        }
+        return first;
+    }
+
+    static final class Node<K> {
+        final K key;
+        final int size;
+
+        Node<K> prev;
+        Node<K> next;
+        PolicyQueue<K> queue;
+
+        /**
+         * Reference bit, used by {@link ClockPolicy}.
+         */
+        boolean referenced;
+
+        Node(K key, int size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+}
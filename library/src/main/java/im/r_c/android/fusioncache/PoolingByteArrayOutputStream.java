@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * FusionCache
+ * <p>
+ * A {@link ByteArrayOutputStream} growing with arrays from a {@link ByteArrayPool},
+ * whose content can be used in place through {@link #getBuffer()}
+ * instead of copying it with {@link #toByteArray()}.
+ * <p>
+ * Call {@link #release()} when done, to return the buffer to the pool.
+ */
+public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+    private static final int DEFAULT_INITIAL_SIZE = 1024;
+
+    private final ByteArrayPool mPool;
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool) {
+        this(pool, DEFAULT_INITIAL_SIZE);
+    }
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool, int initialSize) {
+        super(0);
+        mPool = pool;
+        buf = pool.acquire(Math.max(initialSize, DEFAULT_INITIAL_SIZE));
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(count + 1);
+        super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        super.write(b, off, len);
+    }
+
+    /**
+     * Returns the internal buffer, of which the first {@link #size()} bytes are written.
+     * Valid until the next write or {@link #release()}.
+     */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Return the buffer to the pool. The stream must not be used afterwards.
+     */
+    public synchronized void release() {
+        if (buf != null) {
+            mPool.release(buf);
+            buf = null;
+            count = 0;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new OutOfMemoryError();
+        }
+        if (capacity <= buf.length) {
+            return;
+        }
+        byte[] newBuf = mPool.acquire(Math.max(capacity, buf.length << 1));
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        mPool.release(buf);
+        buf = newBuf;
+    }
+}
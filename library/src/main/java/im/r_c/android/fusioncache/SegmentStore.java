@@ -0,0 +1,627 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * FusionCache
+ * <p>
+ * A disk store for small values, appending them into large segment files
+ * instead of creating a file per value like {@link DiskLruCache}.
+ * <p>
+ * Each record in a segment is:
+ * <pre>
+ *     crc           4 bytes, CRC32 of the rest of the record
+ *     key length    2 bytes
+ *     value length  4 bytes, or -1 for a tombstone of a removed key
+ *     key           UTF-8
+ *     value
+ * </pre>
+ * The index of where each key's latest record is lives in memory,
+ * and is rebuilt by scanning the segments on opening, oldest first.
+ * Values are read at their offset without moving any file position,
+ * so reads run in parallel with each other and with appends.
+ * <p>
+ * Overwritten and removed records stay in their segment as dead bytes.
+ * Once the live part of a full segment drops below {@link #COMPACTION_THRESHOLD},
+ * a background thread copies its live records to the end and deletes it.
+ * <p>
+ * Entries are evicted in the order they were used when the live size
+ * exceeds the max size. The order of reads is kept in memory only,
+ * after reopening it's the order entries were written.
+ * <p>
+ * This class is thread-safe. Keys must not be longer than 65535 bytes.
+ */
+class SegmentStore {
+    static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Full segments with a smaller ratio of live bytes are compacted.
+     */
+    static final float COMPACTION_THRESHOLD = 0.5f;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int TOMBSTONE = -1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+
+    /**
+     * Location of the latest record of each key, least recently used first.
+     * Insertion-ordered, so that looking up doesn't reorder it,
+     * an entry is moved to the end explicitly when it's used.
+     * <p>
+     * Guarded by this store, so are the fields below.
+     */
+    private final LinkedHashMap<String, Location> mIndex = new LinkedHashMap<>();
+
+    /**
+     * Segments by id, the oldest first. The last one is appended to.
+     */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<>();
+
+    /**
+     * Sum of the lengths of live records.
+     */
+    private long mSize;
+    private long mMaxSize;
+    private boolean mCompactionScheduled;
+
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Segment segment;
+                synchronized (SegmentStore.this) {
+                    segment = findSegmentToCompact();
+                    if (segment == null) {
+                        mCompactionScheduled = false;
+                        return;
+                    }
+                    segment.readers++;
+                }
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    synchronized (SegmentStore.this) {
+                        mCompactionScheduled = false;
+                    }
+                    return;
+                } finally {
+                    release(segment);
+                }
+            }
+        }
+    };
+
+    private SegmentStore(File directory, long maxSize, int segmentSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Open the store in {@code directory}, creating it if it doesn't exist.
+     *
+     * @param maxSize Max total length of live records.
+     */
+    static SegmentStore open(File directory, long maxSize) throws IOException {
+        return open(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    static SegmentStore open(File directory, long maxSize, int segmentSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create " + directory);
+        }
+
+        SegmentStore store = new SegmentStore(directory, maxSize, segmentSize);
+        synchronized (store) {
+            store.load();
+            store.trimToSize();
+            store.scheduleCompactionIfNeeded();
+        }
+        return store;
+    }
+
+    private void load() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                mSegments.put(id, new Segment(id, file));
+            } catch (NumberFormatException ignored) {
+                // not ours
+            }
+        }
+        for (Segment segment : mSegments.values()) {
+            scan(segment);
+        }
+    }
+
+    /**
+     * Replay the records of {@code segment} into the index,
+     * truncating a record torn by a crash at its end.
+     * Only headers and keys are read, values are checked when they are read.
+     */
+    private void scan(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        long offset = 0;
+        long fileLength = segment.file.length();
+        byte[] keyBytes = new byte[64];
+        try {
+            while (offset + RECORD_HEADER_SIZE <= fileLength) {
+                in.readInt(); // crc
+                int keyLength = in.readUnsignedShort();
+                int valueLength = in.readInt();
+                long recordLength = RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                if (valueLength < TOMBSTONE || offset + recordLength > fileLength) {
+                    break;
+                }
+                if (keyLength > keyBytes.length) {
+                    keyBytes = new byte[keyLength];
+                }
+                in.readFully(keyBytes, 0, keyLength);
+                String key = new String(keyBytes, 0, keyLength, UTF_8);
+                // A newer record replaces the key's old one, which is dead now
+                removeFromIndex(key);
+                if (valueLength != TOMBSTONE) {
+                    in.skipBytes(valueLength);
+                    putIntoIndex(key, new Location(segment, offset, (int) recordLength, keyLength));
+                }
+                offset += recordLength;
+            }
+        } catch (EOFException ignored) {
+            // torn, truncated below
+        } finally {
+            in.close();
+        }
+        if (offset < fileLength) {
+            segment.channel.truncate(offset);
+        }
+        segment.length = offset;
+    }
+
+    /**
+     * Append a record of {@code key}, whose value is {@code head} followed by
+     * {@code length} bytes of {@code data}, replacing the key's old value.
+     */
+    synchronized void put(String key, byte[] head, byte[] data, int length) throws IOException {
+        byte[] keyBytes = keyBytes(key);
+        int valueLength = head.length + length;
+        long offset = append(keyBytes, valueLength, ByteBuffer.wrap(head), ByteBuffer.wrap(data, 0, length));
+        Segment segment = mSegments.lastEntry().getValue();
+        removeFromIndex(key);
+        putIntoIndex(key, new Location(segment, offset,
+                RECORD_HEADER_SIZE + keyBytes.length + valueLength, keyBytes.length));
+        trimToSize();
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Read the value of {@code key} into an array from {@code pool},
+     * which the caller should release after use.
+     *
+     * @return The value, or null if the key is missing or its record is corrupt.
+     */
+    Value get(String key, ByteArrayPool pool) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = mIndex.remove(key);
+            if (location == null) {
+                return null;
+            }
+            // Move it to the end
+            mIndex.put(key, location);
+            location.segment.readers++;
+        }
+
+        byte[] bytes = pool.acquire(location.recordLength);
+        boolean valid = false;
+        try {
+            readFully(location.segment.channel, bytes, location.recordLength, location.offset);
+            valid = checkCrc(bytes, location.recordLength);
+        } finally {
+            release(location.segment);
+            if (!valid) {
+                pool.release(bytes);
+            }
+        }
+        if (!valid) {
+            synchronized (this) {
+                if (mIndex.get(key) == location) {
+                    removeLocked(key);
+                }
+            }
+            return null;
+        }
+        int valueOffset = RECORD_HEADER_SIZE + location.keyLength;
+        return new Value(bytes, valueOffset, location.recordLength - valueOffset);
+    }
+
+    /**
+     * @return Whether {@code key} was present.
+     */
+    synchronized boolean remove(String key) throws IOException {
+        if (!mIndex.containsKey(key)) {
+            return false;
+        }
+        removeLocked(key);
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+
+    /**
+     * Remove all entries and delete the segments.
+     */
+    synchronized void clear() {
+        for (Segment segment : mSegments.values()) {
+            retire(segment);
+        }
+        mSegments.clear();
+        mIndex.clear();
+        mSize = 0;
+    }
+
+    synchronized long size() {
+        return mSize;
+    }
+
+    synchronized long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Change the max size, evicting entries if it's exceeded.
+     */
+    synchronized void setMaxSize(long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize();
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Remove {@code key} and write a tombstone, so that it stays removed after reopening.
+     */
+    private void removeLocked(String key) throws IOException {
+        removeFromIndex(key);
+        append(keyBytes(key), TOMBSTONE);
+    }
+
+    private void trimToSize() throws IOException {
+        while (mSize > mMaxSize) {
+            Iterator<String> eldest = mIndex.keySet().iterator();
+            if (!eldest.hasNext()) {
+                return;
+            }
+            removeLocked(eldest.next());
+        }
+    }
+
+    private void putIntoIndex(String key, Location location) {
+        mIndex.put(key, location);
+        location.segment.liveBytes += location.recordLength;
+        mSize += location.recordLength;
+    }
+
+    private void removeFromIndex(String key) {
+        Location old = mIndex.remove(key);
+        if (old != null) {
+            old.segment.liveBytes -= old.recordLength;
+            mSize -= old.recordLength;
+        }
+    }
+
+    /**
+     * Append a record to the last segment, starting a new one if it's full.
+     *
+     * @param valueLength Total length of {@code value}, or {@link #TOMBSTONE}.
+     * @return Offset of the record in the last segment.
+     */
+    private long append(byte[] keyBytes, int valueLength, ByteBuffer... value) throws IOException {
+        int recordLength = RECORD_HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0);
+        Segment segment = mSegments.isEmpty() ? null : mSegments.lastEntry().getValue();
+        if (segment == null || (segment.length > 0 && segment.length + recordLength > mSegmentSize)) {
+            segment = newSegment();
+        }
+
+        mRecordHeader.clear();
+        mRecordHeader.putInt(0).putShort((short) keyBytes.length).putInt(valueLength);
+        mCrc.reset();
+        mCrc.update(mRecordHeader.array(), 4, RECORD_HEADER_SIZE - 4);
+        mCrc.update(keyBytes);
+        for (ByteBuffer buffer : value) {
+            mCrc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        mRecordHeader.putInt(0, (int) mCrc.getValue());
+        mRecordHeader.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[2 + value.length];
+        buffers[0] = mRecordHeader;
+        buffers[1] = ByteBuffer.wrap(keyBytes);
+        System.arraycopy(value, 0, buffers, 2, value.length);
+
+        long offset = segment.length;
+        FileChannel channel = segment.channel;
+        channel.position(offset);
+        try {
+            long written = 0;
+            while (written < recordLength) {
+                written += channel.write(buffers);
+            }
+        } catch (IOException e) {
+            // Don't leave a torn record in the middle of the segment
+            channel.truncate(offset);
+            throw e;
+        }
+        segment.length += recordLength;
+        return offset;
+    }
+
+    private Segment newSegment() throws IOException {
+        int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("failed to create " + mDirectory);
+        }
+        Segment segment = new Segment(id, new File(mDirectory, id + SEGMENT_SUFFIX));
+        mSegments.put(id, segment);
+        return segment;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (!mCompactionScheduled && findSegmentToCompact() != null) {
+            mCompactionScheduled = true;
+            mExecutor.submit(mCompaction);
+        }
+    }
+
+    /**
+     * @return A full segment (not the last one) with too many dead bytes, or null.
+     */
+    private Segment findSegmentToCompact() {
+        Segment last = mSegments.isEmpty() ? null : mSegments.lastEntry().getValue();
+        for (Segment segment : mSegments.values()) {
+            if (segment != last && segment.liveBytes < segment.length * COMPACTION_THRESHOLD) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy the live records of {@code segment} to the end and delete it.
+     * Records are read without holding the lock, and copied only if they are
+     * still the latest of their keys when it's taken.
+     */
+    private void compact(Segment segment) throws IOException {
+        byte[] record = new byte[256];
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= segment.length) {
+            readFully(segment.channel, record, RECORD_HEADER_SIZE, offset);
+            int keyLength = ((record[4] & 0xFF) << 8) | (record[5] & 0xFF);
+            int valueLength = ((record[6] & 0xFF) << 24) | ((record[7] & 0xFF) << 16)
+                    | ((record[8] & 0xFF) << 8) | (record[9] & 0xFF);
+            int recordLength = RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (record.length < recordLength) {
+                record = Arrays.copyOf(record, recordLength);
+            }
+            readFully(segment.channel, record, recordLength, offset);
+            boolean valid = checkCrc(record, recordLength);
+            String key = new String(record, RECORD_HEADER_SIZE, keyLength, UTF_8);
+            byte[] keyBytes = Arrays.copyOfRange(record, RECORD_HEADER_SIZE, RECORD_HEADER_SIZE + keyLength);
+
+            synchronized (this) {
+                if (segment.retired) {
+                    return; // cleared meanwhile
+                }
+                Location location = mIndex.get(key);
+                boolean latest = location != null && location.segment == segment && location.offset == offset;
+                if (!valid) {
+                    // Corrupt since written, never copy it
+                    if (latest) {
+                        removeLocked(key);
+                    }
+                } else if (valueLength == TOMBSTONE) {
+                    // Needed only while an older segment may still have a value of the key
+                    if (location == null && mSegments.firstKey() < segment.id) {
+                        append(keyBytes, TOMBSTONE);
+                    }
+                } else if (latest) {
+                    int valueOffset = RECORD_HEADER_SIZE + keyLength;
+                    long newOffset = append(keyBytes, valueLength, ByteBuffer.wrap(record, valueOffset, valueLength));
+                    Segment last = mSegments.lastEntry().getValue();
+                    // Replaced in place, keeping its position in the LRU order
+                    segment.liveBytes -= recordLength;
+                    last.liveBytes += recordLength;
+                    mIndex.put(key, new Location(last, newOffset, recordLength, keyLength));
+                }
+            }
+            offset += recordLength;
+        }
+        synchronized (this) {
+            if (!segment.retired) {
+                mSegments.remove(segment.id);
+                retire(segment);
+            }
+        }
+    }
+
+    /**
+     * Delete {@code segment}. It's closed once no reader is using it,
+     * reading an unlinked file still works meanwhile.
+     */
+    private void retire(Segment segment) {
+        segment.retired = true;
+        //noinspection ResultOfMethodCallIgnored
+        segment.file.delete();
+        if (segment.readers == 0) {
+            closeQuietly(segment.access);
+        }
+    }
+
+    private synchronized void release(Segment segment) {
+        segment.readers--;
+        if (segment.readers == 0 && segment.retired) {
+            closeQuietly(segment.access);
+        }
+    }
+
+    /**
+     * Check the crc at the beginning of a record against the rest of it.
+     * Not using {@link #mCrc}, which is only for writing under the lock.
+     */
+    private static boolean checkCrc(byte[] record, int recordLength) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, recordLength - 4);
+        int expected = ((record[0] & 0xFF) << 24) | ((record[1] & 0xFF) << 16)
+                | ((record[2] & 0xFF) << 8) | (record[3] & 0xFF);
+        return (int) crc.getValue() == expected;
+    }
+
+    private static byte[] keyBytes(String key) {
+        byte[] bytes = key.getBytes(UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Key is too long.");
+        }
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, byte[] bytes, int length, long position)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * A value read by {@link #get(String, ByteArrayPool)},
+     * in {@code bytes} from {@code offset}.
+     */
+    static final class Value {
+        final byte[] bytes;
+        final int offset;
+        final int length;
+
+        Value(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile access;
+        final FileChannel channel;
+
+        /**
+         * Bytes of records written, the rest of the file is never read.
+         */
+        long length;
+
+        /**
+         * Bytes of the records in the index.
+         */
+        long liveBytes;
+
+        /**
+         * Number of threads reading it, which keep it open after it's retired.
+         */
+        int readers;
+        boolean retired;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.access = new RandomAccessFile(file, "rw");
+            this.channel = access.getChannel();
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int recordLength;
+        final int keyLength;
+
+        Location(Segment segment, long offset, int recordLength, int keyLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.keyLength = keyLength;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FusionCache
+ * <p>
+ * Segmented LRU eviction policy.
+ * <p>
+ * New entries go into a probation segment, and are promoted to
+ * a protected segment when hit again. Victims are taken from
+ * probation first, so entries used only once can't push out
+ * entries used repeatedly. When protected segment exceeds its share,
+ * its eldest entries are demoted back to probation.
+ */
+public class SlruPolicy<K> implements EvictionPolicy<K> {
+    private static final int DEFAULT_PROTECTED_PERCENT = 80;
+
+    private final Map<K, PolicyQueue.Node<K>> mNodes = new HashMap<>();
+    private final PolicyQueue<K> mProbation = new PolicyQueue<>();
+    private final PolicyQueue<K> mProtected = new PolicyQueue<>();
+    private final int mProtectedPercent;
+
+    public SlruPolicy() {
+        this(DEFAULT_PROTECTED_PERCENT);
+    }
+
+    /**
+     * @param protectedPercent Share of the cache's size the protected segment may take, 0 ~ 100.
+     */
+    public SlruPolicy(int protectedPercent) {
+        if (protectedPercent < 0 || protectedPercent > 100) {
+            throw new IllegalArgumentException("protectedPercent should be in 0 ~ 100.");
+        }
+        mProtectedPercent = protectedPercent;
+    }
+
+    @Override
+    public void onInsert(K key, int size) {
+        PolicyQueue.Node<K> node = new PolicyQueue.Node<>(key, size);
+        mNodes.put(key, node);
+        mProbation.addLast(node);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node == null) {
+            return;
+        }
+        mProtected.addLast(node);
+        long maxProtected = (mProbation.weight() + mProtected.weight()) * mProtectedPercent / 100;
+        while (mProtected.weight() > maxProtected && !mProtected.isEmpty()) {
+            mProbation.addLast(mProtected.peekFirst());
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        PolicyQueue.Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            node.queue.remove(node);
+        }
+    }
+
+    @Override
+    public K victim() {
+        PolicyQueue.Node<K> victim = mProbation.pollFirst();
+        if (victim == null) {
+            victim = mProtected.pollFirst();
+        }
+        mNodes.remove(victim.key);
+        return victim.key;
+    }
+
+    @Override
+    public String toString() {
+        return "SlruPolicy{" +
+                "probation=" + mProbation.count() +
+                ", protected=" + mProtected.count() +
+                '}';
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FusionCache
+ * <p>
+ * A bounded queue of entries evicted from memory cache
+ * that are waiting to be written into disk cache by a background thread.
+ * <p>
+ * Entries stay visible through {@link #get(String)} until they are written,
+ * so that a value is never missing from both caches while it's in flight.
+ * <p>
+ * This class is thread-safe.
+ */
+class SpillQueue {
+    private static final String LOG_TAG = "SpillQueue";
+
+    /**
+     * Writes one entry into disk cache, called on the background thread.
+     */
+    interface Writer {
+        /**
+         * @param seq The sequence number passed to {@link #offer}.
+         */
+        void write(String key, MemCache.ValueWrapper value, long seq);
+    }
+
+    private final Writer mWriter;
+    private final long mMaxQueuedSize;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Condition mDrained = mLock.newCondition();
+
+    /**
+     * Queued entries in the order they were offered.
+     * Offering a key again moves it to the tail.
+     * <p>
+     * Guarded by {@link #mLock}, so are the fields below.
+     */
+    private final LinkedHashMap<String, Pending> mPending = new LinkedHashMap<>();
+    private long mQueuedSize;
+    private boolean mDrainScheduled;
+    private boolean mClosed;
+
+    /**
+     * A single background thread that drains the queue,
+     * only alive while there is something to write.
+     */
+    private final ExecutorService mExecutorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param maxQueuedSize Max sum of the sizes of queued entries,
+     *                      {@link #offer} blocks while it's exceeded.
+     */
+    SpillQueue(long maxQueuedSize, Writer writer) {
+        if (maxQueuedSize <= 0) {
+            throw new IllegalArgumentException("maxQueuedSize <= 0");
+        }
+        mMaxQueuedSize = maxQueuedSize;
+        mWriter = writer;
+    }
+
+    /**
+     * Queue an entry to be written, blocking while the queue is full.
+     * <p>
+     * Never call this while holding a key lock that the writer may need.
+     *
+     * @return False if the queue is closed, in which case
+     * the caller should write the entry itself.
+     */
+    boolean offer(String key, MemCache.ValueWrapper value, long seq) {
+        mLock.lock();
+        try {
+            // An entry bigger than the whole queue is let in when the queue is empty
+            while (!mClosed && mQueuedSize > 0 && mQueuedSize + value.size > mMaxQueuedSize) {
+                mNotFull.awaitUninterruptibly();
+            }
+            if (mClosed) {
+                return false;
+            }
+
+            Pending previous = mPending.remove(key);
+            if (previous != null) {
+                mQueuedSize -= previous.value.size;
+            }
+            mPending.put(key, new Pending(key, value, seq));
+            mQueuedSize += value.size;
+
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mExecutorService.execute(mDrainRunnable);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the queued value of {@code key}, or null if it's not queued.
+     */
+    MemCache.ValueWrapper get(String key) {
+        mLock.lock();
+        try {
+            Pending pending = mPending.get(key);
+            return pending != null ? pending.value : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the queued entry of {@code key}, if any.
+     * An entry that is being written at the moment can't be stopped,
+     * callers rely on their {@code Writer} to check for that.
+     */
+    void remove(String key) {
+        mLock.lock();
+        try {
+            Pending pending = mPending.remove(key);
+            if (pending != null) {
+                mQueuedSize -= pending.value.size;
+                mNotFull.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drop all queued entries.
+     */
+    void clear() {
+        mLock.lock();
+        try {
+            mPending.clear();
+            mQueuedSize = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Block until every entry queued so far is written.
+     */
+    void flush() {
+        mLock.lock();
+        try {
+            while (mDrainScheduled) {
+                mDrained.awaitUninterruptibly();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Write all queued entries and stop the background thread.
+     * Later {@link #offer} calls return false.
+     */
+    void close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        flush();
+        mExecutorService.shutdown();
+    }
+
+    private void drain() {
+        while (true) {
+            Pending head;
+            mLock.lock();
+            try {
+                Iterator<Pending> iterator = mPending.values().iterator();
+                if (!iterator.hasNext()) {
+                    mDrainScheduled = false;
+                    mDrained.signalAll();
+                    return;
+                }
+                // Leave it in the queue while writing, so get() still sees it
+                head = iterator.next();
+            } finally {
+                mLock.unlock();
+            }
+
+            try {
+                mWriter.write(head.key, head.value, head.seq);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to write " + head.key + " into disk cache.", e);
+            }
+
+            mLock.lock();
+            try {
+                // It may have been removed or replaced while being written
+                if (mPending.get(head.key) == head) {
+                    mPending.remove(head.key);
+                    mQueuedSize -= head.value.size;
+                    mNotFull.signalAll();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    private static final class Pending {
+        final String key;
+        final MemCache.ValueWrapper value;
+        final long seq;
+
+        Pending(String key, MemCache.ValueWrapper value, long seq) {
+            this.key = key;
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+}
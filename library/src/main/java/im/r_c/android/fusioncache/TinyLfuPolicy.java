@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FusionCache
+ * <p>
+ * Window TinyLFU eviction policy, resistant to scans
+ * (like scrolling through a long list once),
+ * which flush everything useful out of a plain LRU cache.
+ * <p>
+ * New entries enter a small LRU window (1% of the cache).
+ * When the window overflows, its eldest entry has to compete
+ * with the eldest entry of the main region, and only the one
+ * seen more often recently (estimated by a {@link FrequencySketch}) stays.
+ * The main region is a segmented LRU: entries hit once more
+ * are promoted from the probation segment to the protected one (80% of it).
+ * <p>
+ * Use with {@link LruCache#LruCache(long, EvictionPolicy)},
+ * {@link MemCache#MemCache(long, EvictionPolicy)} and so on.
+ */
+public class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Map<K, PolicyQueue.Node<K>> mNodes = new HashMap<>();
+    private final PolicyQueue<K> mWindow = new PolicyQueue<>();
+    private final PolicyQueue<K> mProbation = new PolicyQueue<>();
+    private final PolicyQueue<K> mProtected = new PolicyQueue<>();
+    private final FrequencySketch mSketch = new FrequencySketch();
+
+    @Override
+    public void onInsert(K key, int size) {
+        PolicyQueue.Node<K> node = new PolicyQueue.Node<>(key, size);
+        mNodes.put(key, node);
+        mSketch.ensureCapacity(mNodes.size());
+        mSketch.increment(key);
+        mWindow.addLast(node);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        mSketch.increment(key);
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node == null) {
+            return;
+        }
+        if (node.queue == mProbation) {
+            mProtected.addLast(node);
+            // Keep protected segment within its share, demoting its eldest entries
+            long maxProtected = (totalWeight() - mWindow.weight()) * PROTECTED_PERCENT / 100;
+            while (mProtected.weight() > maxProtected && mProtected.count() > 1) {
+                mProbation.addLast(mProtected.peekFirst());
+            }
+        } else {
+            node.queue.addLast(node);
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        PolicyQueue.Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            node.queue.remove(node);
+        }
+    }
+
+    @Override
+    public K victim() {
+        long maxWindow = totalWeight() * WINDOW_PERCENT / 100;
+        if (mainIsEmpty()) {
+            // The cache just got full for the first time, so everything is in window,
+            // move the overflow into main region without competing
+            while (mWindow.weight() > maxWindow && mWindow.count() > 1) {
+                mProbation.addLast(mWindow.peekFirst());
+            }
+        }
+
+        PolicyQueue.Node<K> candidate = null;
+        if (!mWindow.isEmpty() && (mWindow.weight() > maxWindow || mainIsEmpty())) {
+            candidate = mWindow.peekFirst();
+        }
+        PolicyQueue.Node<K> mainVictim = mProbation.peekFirst();
+        if (mainVictim == null) {
+            mainVictim = mProtected.peekFirst();
+        }
+
+        PolicyQueue.Node<K> evicted;
+        if (candidate == null) {
+            evicted = mainVictim != null ? mainVictim : mWindow.peekFirst();
+        } else if (mainVictim == null) {
+            evicted = candidate;
+        } else if (mSketch.frequency(candidate.key) > mSketch.frequency(mainVictim.key)) {
+            // Admit the candidate into main region
+            mProbation.addLast(candidate);
+            evicted = mainVictim;
+        } else {
+            evicted = candidate;
+        }
+
+        evicted.queue.remove(evicted);
+        mNodes.remove(evicted.key);
+        return evicted.key;
+    }
+
+    private long totalWeight() {
+        return mWindow.weight() + mProbation.weight() + mProtected.weight();
+    }
+
+    private boolean mainIsEmpty() {
+        return mProbation.isEmpty() && mProtected.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TinyLfuPolicy{" +
+                "window=" + mWindow.count() +
+                ", probation=" + mProbation.count() +
+                ", protected=" + mProtected.count() +
+                '}';
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FusionCache
+ * <p>
+ * 2Q eviction policy (the full version, by Johnson and Shasha).
+ * <p>
+ * New entries go into a FIFO queue (A1in, 25% of the cache), whose hits
+ * don't count, since they are usually correlated references made soon
+ * after loading. Keys evicted from it are remembered in a ghost queue (A1out,
+ * holding keys only, at most half as many as the cache holds). A key inserted
+ * again while still remembered has proven to be reused, and goes into
+ * the main LRU queue (Am).
+ */
+public class TwoQueuePolicy<K> implements EvictionPolicy<K> {
+    private static final int IN_PERCENT = 25;
+    private static final int OUT_PERCENT = 50;
+
+    /**
+     * Nodes of resident keys and ghost keys.
+     */
+    private final Map<K, PolicyQueue.Node<K>> mNodes = new HashMap<>();
+    private final PolicyQueue<K> mIn = new PolicyQueue<>();
+    private final PolicyQueue<K> mOut = new PolicyQueue<>();
+    private final PolicyQueue<K> mMain = new PolicyQueue<>();
+
+    @Override
+    public void onInsert(K key, int size) {
+        PolicyQueue.Node<K> ghost = mNodes.get(key);
+        if (ghost != null) {
+            mOut.remove(ghost);
+        }
+        PolicyQueue.Node<K> node = new PolicyQueue.Node<>(key, size);
+        mNodes.put(key, node);
+        if (ghost != null) {
+            mMain.addLast(node);
+        } else {
+            mIn.addLast(node);
+        }
+    }
+
+    @Override
+    public void onAccess(K key) {
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node != null && node.queue == mMain) {
+            mMain.addLast(node);
+        }
+        // Hits in A1in don't move it, it's a FIFO queue
+    }
+
+    @Override
+    public void onRemove(K key) {
+        PolicyQueue.Node<K> node = mNodes.get(key);
+        if (node != null && node.queue != mOut) {
+            mNodes.remove(key);
+            node.queue.remove(node);
+        }
+    }
+
+    @Override
+    public K victim() {
+        long maxIn = (mIn.weight() + mMain.weight()) * IN_PERCENT / 100;
+        PolicyQueue.Node<K> victim;
+        if (!mIn.isEmpty() && (mIn.weight() > maxIn || mMain.isEmpty())) {
+            victim = mIn.peekFirst();
+            // Remember the key only
+            mOut.addLast(victim);
+            int maxOut = Math.max((mIn.count() + mMain.count()) * OUT_PERCENT / 100, 1);
+            while (mOut.count() > maxOut) {
+                mNodes.remove(mOut.pollFirst().key);
+            }
+        } else {
+            victim = mMain.pollFirst();
+            mNodes.remove(victim.key);
+        }
+        return victim.key;
+    }
+
+    @Override
+    public String toString() {
+        return "TwoQueuePolicy{" +
+                "in=" + mIn.count() +
+                ", out=" + mOut.count() +
+                ", main=" + mMain.count() +
+                '}';
+    }
+}
@@ -29,7 +29,8 @@ import android.graphics.PixelFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
-import java.io.ByteArrayOutputStream;
+import im.r_c.android.fusioncache.ByteArrayPool;
+import im.r_c.android.fusioncache.PoolingByteArrayOutputStream;
 
 /**
  * FusionCache
@@ -42,9 +43,14 @@ public class BitmapUtils {
         if (bitmap == null) {
             return null;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-        return baos.toByteArray();
+        // Grow in pooled buffers, only the result is allocated
+        PoolingByteArrayOutputStream baos = new PoolingByteArrayOutputStream(ByteArrayPool.getDefault());
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
+            return baos.toByteArray();
+        } finally {
+            baos.release();
+        }
     }
 
     public static Bitmap bytesToBitmap(byte[] bytes) {
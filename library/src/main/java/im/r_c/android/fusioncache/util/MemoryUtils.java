@@ -21,9 +21,9 @@
 
 package im.r_c.android.fusioncache.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 
 /**
  * FusionCache
@@ -45,14 +45,13 @@ public class MemoryUtils {
             return ((byte[]) object).length;
         }
 
-        // Special output stream use to write the content
-        // of an output stream to an internal byte array.
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // Only counts the bytes written, never holds them
+        CountingOutputStream counter = new CountingOutputStream();
 
         // Output stream that can write object
         ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(baos);
+            oos = new ObjectOutputStream(counter);
             oos.writeObject(object);
             oos.flush();
         } catch (IOException ignored) {
@@ -65,9 +64,20 @@ public class MemoryUtils {
             }
         }
 
-        // Get the byte array
-        byte[] byteArray = baos.toByteArray();
+        return (int) Math.min(counter.count, Integer.MAX_VALUE);
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
 
-        return byteArray == null ? 0 : byteArray.length;
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ByteArrayPoolTest {
+    @Test
+    public void arraysAreRoundedUpToBucketLengths() {
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        assertEquals(1024, pool.acquire(0).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        assertEquals(2048, pool.acquire(1025).length);
+        assertEquals(4 * 1024 * 1024, pool.acquire(3 * 1024 * 1024).length);
+        // Longer than the max bucket, exactly as asked
+        assertEquals(4 * 1024 * 1024 + 1, pool.acquire(4 * 1024 * 1024 + 1).length);
+    }
+
+    @Test
+    public void releasedArraysAreReused() {
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        byte[] array = pool.acquire(3000);
+        pool.release(array);
+        assertEquals(4096, pool.size());
+        assertSame(array, pool.acquire(2049));
+        assertEquals(0, pool.size());
+        assertNotSame(array, pool.acquire(2049));
+    }
+
+    @Test
+    public void arraysOfOtherLengthsAreNotPooled() {
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        pool.release(new byte[1000]);
+        pool.release(new byte[2 * 1024 * 1024]);
+        pool.release(null);
+        assertEquals(0, pool.size());
+
+        // Not acquired from the pool, but of a bucket length
+        byte[] array = new byte[1024];
+        pool.release(array);
+        assertSame(array, pool.acquire(1));
+    }
+
+    @Test
+    public void poolNeverExceedsMaxSize() {
+        ByteArrayPool pool = new ByteArrayPool(8 * 1024);
+        for (int i = 0; i < 8; i++) {
+            pool.release(new byte[1024]);
+        }
+        assertEquals(8 * 1024, pool.size());
+
+        // Makes room from the fullest bucket
+        byte[] large = new byte[4096];
+        pool.release(large);
+        assertEquals(8 * 1024, pool.size());
+        assertSame(large, pool.acquire(4096));
+        assertEquals(4 * 1024, pool.size());
+
+        pool.release(new byte[16 * 1024]);
+        assertEquals(4 * 1024, pool.size());
+        pool.clear();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void outputStreamGrowsWithinThePool() {
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        PoolingByteArrayOutputStream out = new PoolingByteArrayOutputStream(pool);
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+            out.write(i);
+        }
+        assertEquals(data.length, out.size());
+        assertEquals(8192, out.getBuffer().length);
+        assertArrayEquals(data, out.toByteArray());
+        // Outgrown buffers went back to the pool
+        assertEquals(1024 + 2048 + 4096, pool.size());
+
+        byte[] buffer = out.getBuffer();
+        out.release();
+        assertEquals(1024 + 2048 + 4096 + 8192, pool.size());
+        assertSame(buffer, pool.acquire(8192));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultWeigherTest {
+    @Test
+    public void serializableIsMeasuredOnlyOncePerSampleInterval() {
+        DefaultWeigher weigher = new DefaultWeigher();
+        Counted.sWrites = 0;
+        int first = weigher.weigh(new Counted(1000));
+        assertEquals(1, Counted.sWrites);
+        assertTrue(first > 1000);
+
+        for (int i = 0; i < 128; i++) {
+            assertTrue(weigher.weigh(new Counted(1000)) > 1000);
+        }
+        // The first one, and a sample every 64 values afterwards
+        assertEquals(3, Counted.sWrites);
+    }
+
+    @Test
+    public void simpleTypesAreWeighedExactly() {
+        DefaultWeigher weigher = new DefaultWeigher();
+        assertEquals(1234, weigher.weigh(new byte[1234]));
+        assertEquals(weigher.weigh("ab") + 4, weigher.weigh("abcd"));
+    }
+
+    private static class Counted implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static int sWrites;
+
+        private final byte[] mPayload;
+
+        Counted(int size) {
+            mPayload = new byte[size];
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            sWrites++;
+            out.defaultWriteObject();
+        }
+    }
+}
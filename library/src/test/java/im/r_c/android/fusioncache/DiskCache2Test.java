@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskCache2Test {
+    private static final long MAX_SIZE = 16 * 1024 * 1024;
+    private static final int ENTRIES = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void writesWhileOpeningAreReadableAndApplied() throws Exception {
+        File dir = populate();
+
+        HeldExecutor opener = new HeldExecutor();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE, opener);
+        assertFalse(cache.isReady());
+        cache.remove("k1");
+        cache.put("k2", "replaced");
+        cache.put("fresh", "value");
+        cache.remove("fresh");
+        cache.put("fresh", "again");
+        assertReadsAfterWrites(cache);
+        assertNull(cache.getString("k3"));
+
+        opener.release();
+        assertSame(cache, cache.whenReady(null).get());
+        assertTrue(cache.isReady());
+        assertReadsAfterWrites(cache);
+        assertEquals("v3", cache.getString("k3"));
+        cache.flush();
+
+        DiskCache2 reopened = new DiskCache2(dir, MAX_SIZE);
+        assertReadsAfterWrites(reopened);
+        assertEquals("v3", reopened.getString("k3"));
+    }
+
+    @Test
+    public void clearWhileOpeningIsApplied() throws Exception {
+        File dir = populate();
+
+        HeldExecutor opener = new HeldExecutor();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE, opener);
+        assertFalse(cache.isReady());
+        cache.put("before", "cleared");
+        cache.clear();
+        cache.put("after", "kept");
+        assertNull(cache.getString("before"));
+        assertEquals("kept", cache.getString("after"));
+
+        opener.release();
+        cache.whenReady(null).get();
+        assertNull(cache.getString("k3"));
+        assertNull(cache.getString("before"));
+        assertEquals("kept", cache.getString("after"));
+    }
+
+    @Test
+    public void readyCallbacksAreCalledOnceOpened() throws Exception {
+        HeldExecutor opener = new HeldExecutor();
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), MAX_SIZE, opener);
+        ReadyCallback early = new ReadyCallback();
+        cache.whenReady(early);
+        assertEquals(0, early.mCalls);
+
+        opener.release();
+        assertEquals(1, early.mCalls);
+        assertSame(cache, early.mResult);
+
+        // Called right away once opened
+        ReadyCallback late = new ReadyCallback();
+        cache.whenReady(late);
+        assertEquals(1, late.mCalls);
+        assertSame(cache, late.mResult);
+        assertEquals(1, early.mCalls);
+    }
+
+    @Test
+    public void failedOpenDropsQueuedWrites() throws Exception {
+        // Can't be created under a file
+        File dir = new File(mFolder.newFile(), "cache");
+
+        HeldExecutor opener = new HeldExecutor();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE, opener);
+        ReadyCallback callback = new ReadyCallback();
+        cache.whenReady(callback);
+        cache.put("queued", "value");
+        assertEquals("value", cache.getString("queued"));
+
+        opener.release();
+        assertEquals(1, callback.mCalls);
+        assertNull(callback.mResult);
+        assertTrue(callback.mFailure instanceof IOException);
+        try {
+            cache.whenReady(null).get();
+            fail("Opening should have failed");
+        } catch (ExecutionException e) {
+            assertSame(callback.mFailure, e.getCause());
+        }
+
+        assertFalse(cache.isReady());
+        assertNull(cache.getString("queued"));
+        cache.put("later", "value");
+        assertNull(cache.getString("later"));
+    }
+
+    @Test
+    public void streamedEntryLengthIsTakenFromItsFile() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        OutputStream out = cache.openOutputStream("streamed");
+        out.write(new byte[100]);
+        out.close();
+        cache.flush();
+
+        // As if a newer value was committed but the journal record of it was lost in a crash
+        File file = entryFile(dir, "streamed");
+        assertTrue(file.isFile());
+        FileOutputStream append = new FileOutputStream(file, true);
+        append.write(new byte[50]);
+        append.close();
+
+        DiskCache2 reopened = new DiskCache2(dir, MAX_SIZE);
+        assertArrayEquals(new byte[150], reopened.getBytes("streamed"));
+    }
+
+    @Test
+    public void entryIsOnlyReadAsTheTypeItWasStoredAs() throws Exception {
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), MAX_SIZE);
+        cache.put("k", "v");
+        assertNull(cache.getBytes("k"));
+        assertNull(cache.get("k", Integer.class));
+        assertEquals("v", cache.get("k"));
+        // Not removed by reading it as another type
+        assertEquals("v", cache.getString("k"));
+    }
+
+    @Test
+    public void entryOfAnotherCodecVersionIsRemoved() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        cache.registerCodec(StringBuilder.class, new StringBuilderCodec(1));
+        cache.put("k", new StringBuilder("v"));
+        assertEquals("v", cache.get("k", StringBuilder.class).toString());
+        cache.flush();
+
+        DiskCache2 reopened = new DiskCache2(dir, MAX_SIZE);
+        reopened.registerCodec(StringBuilder.class, new StringBuilderCodec(2));
+        assertNull(reopened.get("k", StringBuilder.class));
+        reopened.registerCodec(StringBuilder.class, new StringBuilderCodec(1));
+        assertNull(reopened.get("k", StringBuilder.class));
+    }
+
+    @Test
+    public void valuesFromTheThresholdUpAreCompressed() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        cache.setCompression(new DeflateCompressor(), 100);
+        String small = repeat('a', 99);
+        String large = repeat('a', 1000);
+        byte[] random = new byte[1000];
+        new Random(1).nextBytes(random);
+        cache.put("small", small);
+        cache.put("large", large);
+        cache.put("random", random);
+
+        assertEquals(EntryHeader.SIZE + 99, entryFile(dir, "small").length());
+        assertTrue(entryFile(dir, "large").length() < 100);
+        // Compressing made it bigger
+        assertEquals(EntryHeader.SIZE + 1000, entryFile(dir, "random").length());
+
+        assertEquals(small, cache.getString("small"));
+        assertEquals(large, cache.getString("large"));
+        assertArrayEquals(random, cache.getBytes("random"));
+        cache.flush();
+
+        // Readable without setting a compressor
+        DiskCache2 reopened = new DiskCache2(dir, MAX_SIZE);
+        assertEquals(large, reopened.getString("large"));
+        assertArrayEquals(random, reopened.getBytes("random"));
+    }
+
+    @Test
+    public void customCompressorIsUsedWhenSet() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        cache.setCompression(new PrefixCompressor(), 0);
+        cache.put("k", repeat('a', 100));
+        assertEquals(EntryHeader.SIZE + 1 + 2, entryFile(dir, "k").length());
+        assertEquals(repeat('a', 100), cache.getString("k"));
+        cache.flush();
+
+        DiskCache2 reopened = new DiskCache2(dir, MAX_SIZE);
+        // Unknown compressor
+        assertNull(reopened.getString("k"));
+
+        reopened = new DiskCache2(dir, MAX_SIZE);
+        reopened.setCompression(new PrefixCompressor(), 0);
+        assertEquals(repeat('a', 100), reopened.getString("k"));
+
+        try {
+            cache.setCompression(new PrefixCompressor() {
+                @Override
+                public int id() {
+                    return 256;
+                }
+            }, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void streamedValueRoundTrip() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        byte[] value = new byte[1024 * 1024];
+        new Random(1).nextBytes(value);
+        DiskCache2.EntryOutputStream out = cache.openOutputStream("k");
+        for (int offset = 0; offset < value.length; offset += 4096) {
+            out.write(value, offset, 4096);
+        }
+        // Ignored while the stream is open
+        cache.put("k", new byte[1]);
+        out.close();
+
+        assertArrayEquals(value, readFully(cache.openInputStream("k")));
+        assertArrayEquals(value, cache.getBytes("k"));
+        cache.flush();
+        assertArrayEquals(value, new DiskCache2(dir, MAX_SIZE).getBytes("k"));
+    }
+
+    @Test
+    public void abortedStreamKeepsTheOldValue() throws Exception {
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), MAX_SIZE);
+        cache.put("k", new byte[]{1, 2, 3});
+        DiskCache2.EntryOutputStream out = cache.openOutputStream("k");
+        out.write(new byte[100]);
+        out.abort();
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.getBytes("k"));
+    }
+
+    @Test
+    public void inputStreamReadsPutValues() throws Exception {
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), MAX_SIZE);
+        cache.setCompression(new DeflateCompressor(), 0);
+        byte[] value = new byte[1000];
+        cache.put("compressed", value);
+        assertArrayEquals(value, readFully(cache.openInputStream("compressed")));
+
+        cache.put("k", new byte[]{1, 2, 3});
+        InputStream in = cache.openInputStream("k");
+        // Reads the value as it was when opened
+        cache.put("k", new byte[]{4, 5, 6});
+        assertArrayEquals(new byte[]{1, 2, 3}, readFully(in));
+
+        cache.put("string", "v");
+        assertNull(cache.openInputStream("string"));
+        assertNull(cache.openInputStream("missing"));
+    }
+
+    @Test
+    public void largeValuesAreMapped() throws Exception {
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), MAX_SIZE);
+        cache.setMmapThreshold(1000);
+        byte[] large = new byte[1000];
+        new Random(1).nextBytes(large);
+        cache.put("large", large);
+
+        ByteBuffer buffer = cache.getByteBuffer("large");
+        assertTrue(buffer instanceof MappedByteBuffer);
+        assertTrue(buffer.isReadOnly());
+        assertArrayEquals(large, bytesOf(buffer));
+
+        // Still valid after the entry file is replaced
+        cache.put("large", new byte[1000]);
+        assertArrayEquals(large, bytesOf(buffer));
+        cache.releaseByteBuffer(buffer);
+    }
+
+    @Test
+    public void smallAndCompressedValuesAreReadIntoPooledArrays() throws Exception {
+        DiskCache2 cache = new DiskCache2(mFolder.newFolder(), MAX_SIZE);
+        ByteArrayPool pool = new ByteArrayPool(1024 * 1024);
+        cache.setByteArrayPool(pool);
+        cache.setMmapThreshold(1000);
+        byte[] small = new byte[999];
+        new Random(1).nextBytes(small);
+        cache.put("small", small);
+
+        ByteBuffer buffer = cache.getByteBuffer("small");
+        assertTrue(buffer.hasArray());
+        assertArrayEquals(small, bytesOf(buffer));
+        long pooled = pool.size();
+        cache.releaseByteBuffer(buffer);
+        assertTrue(pool.size() > pooled);
+
+        cache.setCompression(new DeflateCompressor(), 0);
+        cache.put("compressed", new byte[2000]);
+        buffer = cache.getByteBuffer("compressed");
+        assertTrue(buffer.hasArray());
+        assertArrayEquals(new byte[2000], bytesOf(buffer));
+
+        assertNull(cache.getByteBuffer("missing"));
+    }
+
+    @Test
+    public void segmentStoreIsKeptConsistentWhileDisabled() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        cache.enableSegmentStore(1024, MAX_SIZE);
+        cache.put("removed", "small");
+        cache.put("replaced", "small");
+        cache.put("kept", "small");
+        cache.flush();
+
+        DiskCache2 disabled = new DiskCache2(dir, MAX_SIZE);
+        assertEquals("small", disabled.getString("kept"));
+        disabled.remove("removed");
+        disabled.put("replaced", "new");
+        assertNull(disabled.getString("removed"));
+        assertEquals("new", disabled.getString("replaced"));
+        disabled.flush();
+
+        DiskCache2 enabled = new DiskCache2(dir, MAX_SIZE);
+        enabled.enableSegmentStore(1024, MAX_SIZE);
+        assertNull(enabled.getString("removed"));
+        assertEquals("new", enabled.getString("replaced"));
+        assertEquals("small", enabled.getString("kept"));
+    }
+
+    @Test
+    public void clearWhileSegmentStoreIsDisabledClearsIt() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        cache.enableSegmentStore(1024, MAX_SIZE);
+        cache.put("small", "value");
+        cache.flush();
+
+        new DiskCache2(dir, MAX_SIZE).clear();
+
+        DiskCache2 enabled = new DiskCache2(dir, MAX_SIZE);
+        enabled.enableSegmentStore(1024, MAX_SIZE);
+        assertNull(enabled.getString("small"));
+    }
+
+    private File populate() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskCache2 cache = new DiskCache2(dir, MAX_SIZE);
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.flush();
+        return dir;
+    }
+
+    private static String md5Hex(String key) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(key.getBytes())) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void assertReadsAfterWrites(DiskCache2 cache) {
+        assertNull(cache.getString("k1"));
+        assertEquals("replaced", cache.getString("k2"));
+        assertEquals("again", cache.getString("fresh"));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static File entryFile(File dir, String key) throws Exception {
+        return new File(dir, md5Hex(key) + ".0");
+    }
+
+    /**
+     * Stores a run of one byte as the byte and the run length,
+     * leaves anything else uncompressed.
+     */
+    private static class PrefixCompressor implements Compressor {
+        @Override
+        public int id() {
+            return 200;
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (data[i] != data[offset]) {
+                    return null;
+                }
+            }
+            return new byte[]{data[offset], (byte) length};
+        }
+
+        @Override
+        public byte[] decompress(InputStream in, int originalLength) throws IOException {
+            byte[] result = new byte[originalLength];
+            Arrays.fill(result, (byte) in.read());
+            in.read();
+            return result;
+        }
+    }
+
+    private static class StringBuilderCodec implements Codec<StringBuilder> {
+        private final int mVersion;
+
+        StringBuilderCodec(int version) {
+            mVersion = version;
+        }
+
+        @Override
+        public int version() {
+            return mVersion;
+        }
+
+        @Override
+        public byte[] encode(StringBuilder value) {
+            return value.toString().getBytes();
+        }
+
+        @Override
+        public StringBuilder decode(byte[] data) {
+            return new StringBuilder(new String(data));
+        }
+    }
+
+    private static class ReadyCallback implements FusionCache.Callback<DiskCache2> {
+        private int mCalls;
+        private DiskCache2 mResult;
+        private Throwable mFailure;
+
+        @Override
+        public void onSuccess(DiskCache2 result) {
+            mCalls++;
+            mResult = result;
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            mCalls++;
+            mFailure = t;
+        }
+    }
+
+    /**
+     * Holds the opening until {@link #release()}, so writes are queued deterministically.
+     */
+    private static class HeldExecutor implements Executor {
+        private Runnable mCommand;
+
+        @Override
+        public void execute(Runnable command) {
+            mCommand = command;
+        }
+
+        void release() {
+            mCommand.run();
+        }
+    }
+}
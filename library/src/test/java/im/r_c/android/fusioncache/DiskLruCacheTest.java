@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void dottedKeySurvivesReopenWithTextJournal() throws IOException {
+        assertDottedKeySurvivesReopen(DiskLruCache.JOURNAL_TEXT);
+    }
+
+    @Test
+    public void dottedKeySurvivesReopenWithBinaryJournal() throws IOException {
+        assertDottedKeySurvivesReopen(DiskLruCache.JOURNAL_BINARY);
+    }
+
+    @Test
+    public void journalIsMigratedBetweenFormats() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_TEXT);
+        put(cache, "a", "1");
+        put(cache, "b", "2");
+        put(cache, "c", "3");
+        cache.remove("c");
+        cache.close();
+        assertEquals(DiskLruCache.MAGIC, firstLineOf(new File(dir, DiskLruCache.JOURNAL_FILE)));
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertEquals(DiskLruCache.BINARY_MAGIC, firstIntOf(new File(dir, DiskLruCache.JOURNAL_FILE)));
+        assertEquals("1", get(cache, "a"));
+        assertEquals("2", get(cache, "b"));
+        assertNull(get(cache, "c"));
+        put(cache, "d", "4");
+        cache.close();
+
+        cache = open(dir, DiskLruCache.JOURNAL_TEXT);
+        assertEquals(DiskLruCache.MAGIC, firstLineOf(new File(dir, DiskLruCache.JOURNAL_FILE)));
+        assertEquals("1", get(cache, "a"));
+        assertEquals("4", get(cache, "d"));
+        assertEquals(3, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void tornTailIsDroppedOnOpen() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "a", "1");
+        cache.close();
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        long intactLength = journal.length();
+        // A CLEAN record cut off in the middle of its key
+        appendTo(journal, new byte[]{1, 10, 'x', 'y'});
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        // Rebuilt without the torn record
+        assertTrue(journal.length() <= intactLength);
+        assertEquals("1", get(cache, "a"));
+        put(cache, "b", "2");
+        cache.close();
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertEquals("1", get(cache, "a"));
+        assertEquals("2", get(cache, "b"));
+        cache.close();
+    }
+
+    @Test
+    public void recordWithBadChecksumEndsTheJournal() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "a", "1");
+        put(cache, "b", "2");
+        cache.close();
+
+        // The last record is b's CLEAN, flip a bit of its checksum
+        RandomAccessFile journal = new RandomAccessFile(new File(dir, DiskLruCache.JOURNAL_FILE), "rw");
+        try {
+            journal.seek(journal.length() - 1);
+            int last = journal.read();
+            journal.seek(journal.length() - 1);
+            journal.write(last ^ 1);
+        } finally {
+            journal.close();
+        }
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertEquals("1", get(cache, "a"));
+        // Left dirty by the journal, so its file is deleted
+        assertNull(get(cache, "b"));
+        assertFalse(new File(dir, "b.0").exists());
+        assertEquals(1, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void orphanFilesAreDeletedOnOpen() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "img.png", "kept");
+        cache.close();
+
+        File orphan = new File(dir, "orphan.png.0");
+        File orphanTmp = new File(dir, "orphan.png.0.tmp");
+        File unrelated = new File(dir, "notes.txt");
+        assertTrue(orphan.createNewFile());
+        assertTrue(orphanTmp.createNewFile());
+        assertTrue(unrelated.createNewFile());
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertFalse(orphan.exists());
+        assertFalse(orphanTmp.exists());
+        assertTrue(unrelated.exists());
+        assertEquals("kept", get(cache, "img.png"));
+        cache.close();
+    }
+
+    @Test
+    public void lostRemoveRecordDropsEntryOnOpen() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "k0", "gone");
+        put(cache, "k1", "kept");
+        cache.flush();
+
+        holdJournalRecords(cache);
+        assertTrue(cache.remove("k0"));
+        // Crash: the REMOVE record is never written
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertNull(get(cache, "k0"));
+        assertEquals("kept", get(cache, "k1"));
+        assertEquals("kept".length(), cache.size());
+        assertFalse(cache.remove("k0"));
+        cache.close();
+    }
+
+    @Test
+    public void lostDirtyRecordDeletesDirtyFileOnOpen() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "x", "old");
+        cache.flush();
+
+        holdJournalRecords(cache);
+        DiskLruCache.Editor editor = cache.edit("x");
+        editor.set(0, "new");
+        assertTrue(new File(dir, "x.0.tmp").exists());
+        // Crash: neither the DIRTY record nor the commit is written
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertFalse(new File(dir, "x.0.tmp").exists());
+        assertEquals("old", get(cache, "x"));
+        assertEquals("old".length(), cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void syncDurabilityWritesRecordsBeforeReturning() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        holdJournalRecords(cache);
+        cache.setDurability(DiskLruCache.DURABILITY_SYNC);
+        put(cache, "a", "1");
+        // Crash
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertEquals("1", get(cache, "a"));
+        cache.close();
+    }
+
+    @Test
+    public void groupCommittedRecordsSurviveOnceFlushed() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        holdJournalRecords(cache);
+        put(cache, "a", "1");
+        cache.flush();
+        put(cache, "b", "2");
+        // Crash before the group commit of b
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertEquals("1", get(cache, "a"));
+        assertNull(get(cache, "b"));
+        assertFalse(new File(dir, "b.0").exists());
+        cache.close();
+    }
+
+    @Test
+    public void pendingRecordsAreWrittenByTheCallerWhenFarBehind() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        holdJournalRecords(cache);
+        // Any record is more than 4 times this
+        cache.setGroupCommit(TimeUnit.HOURS.toMillis(1), 1);
+        put(cache, "a", "1");
+        // Crash
+
+        cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        assertEquals("1", get(cache, "a"));
+        cache.close();
+    }
+
+    @Test
+    public void pendingRecordsAreWrittenAfterTheDelay() throws Exception {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        long emptyLength = journal.length();
+        holdJournalRecords(cache);
+        cache.setGroupCommit(10, Integer.MAX_VALUE);
+        put(cache, "a", "1");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journal.length() == emptyLength && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(journal.length() > emptyLength);
+        cache.close();
+    }
+
+    @Test
+    public void readOrderSurvivesReopen() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 1, 3, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "a", "1");
+        put(cache, "b", "2");
+        put(cache, "c", "3");
+        assertEquals("1", get(cache, "a"));
+        cache.close();
+
+        cache = DiskLruCache.open(dir, 1, 1, 3, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "d", "4");
+        cache.flush();
+        assertNull(get(cache, "b"));
+        assertEquals("1", get(cache, "a"));
+        cache.close();
+    }
+
+    @Test
+    public void readsDontWriteTheJournalUntilCheckpoint() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        put(cache, "a", "1");
+        put(cache, "b", "2");
+        cache.flush();
+        holdJournalRecords(cache);
+        File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+        long length = journal.length();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("1", get(cache, "a"));
+        }
+        assertEquals(length, journal.length());
+        cache.flush();
+        assertTrue(journal.length() > length);
+
+        // One record per key read, however often
+        long checkpointLength = journal.length() - length;
+        assertEquals("1", get(cache, "a"));
+        assertEquals("1", get(cache, "a"));
+        assertEquals("2", get(cache, "b"));
+        cache.flush();
+        assertEquals(length + checkpointLength * 3, journal.length());
+        cache.close();
+    }
+
+    @Test
+    public void journalCompactionKeepsConcurrentEdits() throws Exception {
+        final File dir = mFolder.newFolder();
+        final DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_BINARY);
+        final int threads = 4;
+        final int keysPerThread = 25;
+        final int rounds = 3000;
+        // Expected value of each key, or null if it's removed
+        final List<Map<String, String>> expected = new ArrayList<>();
+        List<Future<?>> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                final Map<String, String> own = new HashMap<>();
+                expected.add(own);
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        Random random = new Random(thread);
+                        for (int round = 0; round < rounds; round++) {
+                            String key = "t" + thread + "k" + random.nextInt(keysPerThread);
+                            if (random.nextInt(5) == 0) {
+                                cache.remove(key);
+                                own.put(key, null);
+                            } else {
+                                String value = "v" + round;
+                                put(cache, key, value);
+                                own.put(key, value);
+                            }
+                            assertEquals(own.get(key), get(cache, key));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        cache.close();
+
+        // Compacted at least once, it would be several times longer otherwise
+        assertTrue(new File(dir, DiskLruCache.JOURNAL_FILE).length() < 100 * 1024);
+
+        DiskLruCache reopened = open(dir, DiskLruCache.JOURNAL_BINARY);
+        for (Map<String, String> own : expected) {
+            for (Map.Entry<String, String> entry : own.entrySet()) {
+                assertEquals(entry.getKey(), entry.getValue(), get(reopened, entry.getKey()));
+            }
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void missingCleanFileIsTreatedAsRemoved() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, DiskLruCache.JOURNAL_TEXT);
+        put(cache, "k0", "value");
+        assertTrue(new File(dir, "k0.0").delete());
+        assertTrue(cache.remove("k0"));
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+
+    /**
+     * Keep journal records of {@code cache} in memory from now on,
+     * so that abandoning it afterwards is like the process crashing.
+     */
+    private static void holdJournalRecords(DiskLruCache cache) {
+        cache.setDurability(DiskLruCache.DURABILITY_GROUP_COMMIT);
+        cache.setGroupCommit(TimeUnit.HOURS.toMillis(1), Integer.MAX_VALUE);
+        cache.setReadCheckpointInterval(TimeUnit.HOURS.toMillis(1));
+    }
+
+    private void assertDottedKeySurvivesReopen(int journalFormat) throws IOException {
+        File dir = mFolder.newFolder();
+        DiskLruCache cache = open(dir, journalFormat);
+        put(cache, "img.png", "a");
+        put(cache, "archive.tar.gz", "b");
+        put(cache, "plain", "c");
+        cache.close();
+
+        cache = open(dir, journalFormat);
+        assertEquals("a", get(cache, "img.png"));
+        assertEquals("b", get(cache, "archive.tar.gz"));
+        assertEquals("c", get(cache, "plain"));
+        assertNull(get(cache, "img"));
+        cache.close();
+    }
+
+    private static String firstLineOf(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int firstIntOf(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void appendTo(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static DiskLruCache open(File dir, int journalFormat) throws IOException {
+        return DiskLruCache.open(dir, 1, 1, 1024 * 1024, journalFormat);
+    }
+
+    private static void put(DiskLruCache cache, String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull(editor);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskLruCache cache, String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EntryHeaderTest {
+    @Test
+    public void roundTrip() throws IOException {
+        EntryHeader header = read(new EntryHeader(EntryHeader.FLAG_COMPRESSED, -123456, 65535, 42).toBytes());
+        assertTrue(header.isCompressed());
+        assertEquals(-123456, header.typeId);
+        assertEquals(65535, header.codecVersion);
+        assertEquals(42, header.length);
+
+        header = read(new EntryHeader(0, 1, 0, EntryHeader.UNKNOWN_LENGTH).toBytes());
+        assertEquals(EntryHeader.UNKNOWN_LENGTH, header.length);
+    }
+
+    @Test
+    public void readUnbufferedStopsAtTheHeader() throws IOException {
+        byte[] entry = new byte[EntryHeader.SIZE + 1];
+        System.arraycopy(new EntryHeader(0, 1, 0, 1).toBytes(), 0, entry, 0, EntryHeader.SIZE);
+        entry[EntryHeader.SIZE] = 7;
+        InputStream in = new ByteArrayInputStream(entry);
+        assertEquals(1, EntryHeader.readUnbuffered(in).length);
+        assertEquals(7, in.read());
+    }
+
+    @Test
+    public void unknownFormatsAreRejected() throws IOException {
+        byte[] bytes = new EntryHeader(0, 1, 0, 1).toBytes();
+        bytes[0] ^= 1;
+        assertNull(read(bytes));
+
+        bytes = new EntryHeader(0, 1, 0, 1).toBytes();
+        // Format version
+        bytes[2] = 2;
+        assertNull(read(bytes));
+
+        // Unknown flag
+        assertNull(read(new EntryHeader(2, 1, 0, 1).toBytes()));
+
+        // A compressed payload always has a known length
+        assertNull(read(new EntryHeader(EntryHeader.FLAG_COMPRESSED, 1, 0, EntryHeader.UNKNOWN_LENGTH).toBytes()));
+        assertNull(read(new EntryHeader(0, 1, 0, -2).toBytes()));
+    }
+
+    private static EntryHeader read(byte[] bytes) throws IOException {
+        return EntryHeader.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
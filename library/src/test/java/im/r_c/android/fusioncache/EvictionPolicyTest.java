@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package im.r_c.android.fusioncache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a fixed trace through {@link LruCache} with each policy
+ * and compares the hit ratios with plain LRU.
+ * <p>
+ * The trace loops over a hot set that fits in the cache,
+ * interrupted by scans of keys that are used only once
+ * and are each as long as the cache. LRU loses the hot set to every scan,
+ * scan-resistant policies keep it.
+ */
+public class EvictionPolicyTest {
+    private static final int CAPACITY = 100;
+    private static final int HOT_KEYS = 50;
+    private static final int HOT_LOOPS = 4;
+    private static final int SCAN_KEYS = CAPACITY;
+    private static final int ROUNDS = 20;
+
+    private static final List<String> TRACE = buildTrace();
+
+    @Test
+    public void lruLosesHotSetToScans() {
+        // Only the loops after the first one of every round hit
+        double expected = (double) ROUNDS * (HOT_LOOPS - 1) * HOT_KEYS / TRACE.size();
+        assertEquals(expected, hitRatio(null), 1e-9);
+    }
+
+    @Test
+    public void slruBeatsLru() {
+        assertScanResistant(new SlruPolicy<String>());
+    }
+
+    @Test
+    public void twoQueueBeatsLru() {
+        assertScanResistant(new TwoQueuePolicy<String>());
+    }
+
+    @Test
+    public void arcBeatsLru() {
+        assertScanResistant(new ArcPolicy<String>());
+    }
+
+    @Test
+    public void tinyLfuBeatsLru() {
+        assertScanResistant(new TinyLfuPolicy<String>());
+    }
+
+    @Test
+    public void clockIsNoWorseThanLru() {
+        // Second chances only help until the hand has gone around once
+        assertTrue(hitRatio(new ClockPolicy<String>()) >= hitRatio(null));
+    }
+
+    private static void assertScanResistant(EvictionPolicy<String> policy) {
+        double lru = hitRatio(null);
+        double ratio = hitRatio(policy);
+        assertTrue(policy.getClass().getSimpleName() + " hit ratio " + ratio + " <= LRU " + lru,
+                ratio > lru + 0.05);
+    }
+
+    private static double hitRatio(EvictionPolicy<String> policy) {
+        LruCache<String, String> cache = new LruCache<>(CAPACITY, policy);
+        for (String key : TRACE) {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+        assertTrue(cache.size() <= CAPACITY);
+        return (double) cache.hitCount() / TRACE.size();
+    }
+
+    private static List<String> buildTrace() {
+        List<String> trace = new ArrayList<>();
+        int scanned = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int loop = 0; loop < HOT_LOOPS; loop++) {
+                for (int i = 0; i < HOT_KEYS; i++) {
+                    trace.add("hot" + i);
+                }
+            }
+            for (int i = 0; i < SCAN_KEYS; i++) {
+                trace.add("scan" + scanned++);
+            }
+        }
+        return trace;
+    }
+}
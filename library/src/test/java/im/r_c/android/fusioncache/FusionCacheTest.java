@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class FusionCacheTest {
+    private static final long MAX_DISK_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiskCache2 mDiskCache;
+    private FusionCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        // Every value weighs 1, so the memory tier holds 2 of them
+        MemCache memCache = new MemCache(2);
+        memCache.setWeigher(new Weigher<Object>() {
+            @Override
+            public int weigh(Object value) {
+                return 1;
+            }
+        });
+        mDiskCache = new DiskCache2(mFolder.newFolder(), MAX_DISK_SIZE);
+        mCache = new FusionCache(mock(Context.class), memCache, mDiskCache);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.close();
+    }
+
+    @Test
+    public void writeBehindSpillsTheLatestEvictedValue() {
+        mCache.enableWriteBehind(100);
+        mCache.put("a", "1");
+        mCache.put("b", "1");
+        // Evicts a=1
+        mCache.put("c", "1");
+        assertEquals("1", mCache.getString("a"));
+
+        mCache.put("a", "2");
+        mCache.put("d", "1");
+        mCache.put("e", "1");
+        // a=2 is evicted by now, queued after a=1
+        mCache.flush();
+        assertNull(mCache.getMemCache().getString("a"));
+        assertEquals("2", mDiskCache.getString("a"));
+        assertEquals("1", mDiskCache.getString("b"));
+        assertEquals("2", mCache.getString("a"));
+    }
+
+    @Test
+    public void removedKeyIsNotSpilledAfterwards() {
+        mCache.enableWriteBehind(100);
+        mCache.put("a", "1");
+        mCache.put("b", "1");
+        mCache.put("c", "1");
+        mCache.remove("a");
+        mCache.clear();
+        mCache.put("d", "1");
+        mCache.flush();
+        assertNull(mDiskCache.getString("a"));
+        assertNull(mDiskCache.getString("b"));
+        assertNull(mCache.getString("a"));
+        assertEquals("1", mCache.getString("d"));
+    }
+
+    @Test
+    public void loadedValueIsCachedInBothTiers() {
+        CountingLoader loader = new CountingLoader("loaded");
+        assertEquals("loaded", mCache.get("k", String.class, loader));
+        assertEquals("loaded", mCache.get("k", String.class, loader));
+        assertEquals(1, loader.mCalls);
+        assertEquals("loaded", mCache.getMemCache().getString("k"));
+
+        // Spilled into disk cache once evicted
+        mCache.put("x", "1");
+        mCache.put("y", "1");
+        assertEquals("loaded", mDiskCache.getString("k"));
+        assertEquals("loaded", mCache.get("k", String.class, loader));
+        assertEquals(1, loader.mCalls);
+    }
+
+    @Test
+    public void nullIsNotCached() {
+        CountingLoader loader = new CountingLoader(null);
+        assertNull(mCache.get("k", String.class, loader));
+        assertNull(mCache.get("k", String.class, loader));
+        assertEquals(2, loader.mCalls);
+        assertNull(mCache.getString("k"));
+    }
+
+    @Test
+    public void valuePutWhileLoadingIsNotOverwritten() {
+        String result = mCache.get("k", String.class, new FusionCache.Loader<String>() {
+            @Override
+            public String load(String key) {
+                mCache.put(key, "put");
+                return "loaded";
+            }
+        });
+        assertEquals("put", result);
+        assertEquals("put", mCache.getString("k"));
+    }
+
+    @Test
+    public void getAllLoadsOnlyMissingKeysAtOnce() {
+        mCache.put("a", "cached");
+        final List<List<String>> calls = new ArrayList<>();
+        Map<String, String> result = mCache.getAll(Arrays.asList("a", "b", "c"), String.class,
+                new FusionCache.BulkLoader<String>() {
+                    @Override
+                    public Map<String, String> loadAll(List<String> keys) {
+                        calls.add(new ArrayList<>(keys));
+                        Map<String, String> loaded = new HashMap<>();
+                        loaded.put("b", "loaded");
+                        return loaded;
+                    }
+                });
+        assertEquals(Arrays.asList(Arrays.asList("b", "c")), calls);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(result.keySet()));
+        assertEquals("cached", result.get("a"));
+        assertEquals("loaded", result.get("b"));
+        assertEquals("loaded", mCache.getString("b"));
+        assertNull(mCache.getString("c"));
+    }
+
+    @Test
+    public void memoryHitCompletesOnCallingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            mCache.setIOExecutor(executor);
+            mCache.put("k", "v");
+            RecordingCallback<String> callback = new RecordingCallback<>();
+            Future<String> future = mCache.getAsync("k", String.class, callback);
+            assertTrue(future.isDone());
+            assertEquals("v", future.get());
+            assertEquals("v", callback.mResult.get());
+            assertSame(Thread.currentThread(), callback.mThread.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void missesRunOnIOExecutor() throws Exception {
+        final Thread[] ioThread = new Thread[1];
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                ioThread[0] = new Thread(r);
+                return ioThread[0];
+            }
+        });
+        try {
+            mCache.setIOExecutor(executor);
+            mDiskCache.put("disk", "v");
+
+            RecordingCallback<String> callback = new RecordingCallback<>();
+            assertEquals("v", mCache.getAsync("disk", String.class, callback).get(5, TimeUnit.SECONDS));
+            assertTrue(callback.mDone.await(5, TimeUnit.SECONDS));
+            assertEquals("v", callback.mResult.get());
+            assertSame(ioThread[0], callback.mThread.get());
+
+            assertEquals("loaded", mCache.getAsync("missing", String.class,
+                    new CountingLoader("loaded"), null).get(5, TimeUnit.SECONDS));
+            mCache.putAsync("put", "v", null).get(5, TimeUnit.SECONDS);
+            assertEquals("v", mCache.getString("put"));
+            mCache.removeAsync("put", null).get(5, TimeUnit.SECONDS);
+            assertNull(mCache.getString("put"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void loaderFailureIsReported() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            mCache.setIOExecutor(executor);
+            final RuntimeException failure = new RuntimeException("load failed");
+            RecordingCallback<String> callback = new RecordingCallback<>();
+            Future<String> future = mCache.getAsync("k", String.class, new FusionCache.Loader<String>() {
+                @Override
+                public String load(String key) {
+                    throw failure;
+                }
+            }, callback);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+            assertTrue(callback.mDone.await(5, TimeUnit.SECONDS));
+            assertSame(failure, callback.mFailure.get());
+            assertNull(callback.mResult.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectedOperationFailsRightAway() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        mCache.setIOExecutor(executor);
+
+        RecordingCallback<String> callback = new RecordingCallback<>();
+        Future<String> future = mCache.getAsync("k", String.class, callback);
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertTrue(callback.mFailure.get() instanceof RejectedExecutionException);
+        assertSame(Thread.currentThread(), callback.mThread.get());
+    }
+
+    @Test
+    public void concurrentDiskMissesShareOneRead() throws Exception {
+        final CountDownLatch decodeStarted = new CountDownLatch(1);
+        final CountDownLatch decodeReleased = new CountDownLatch(1);
+        final AtomicInteger decodes = new AtomicInteger();
+        mCache.registerCodec(Token.class, new Codec<Token>() {
+            @Override
+            public int version() {
+                return 1;
+            }
+
+            @Override
+            public byte[] encode(Token value) {
+                return value.mValue.getBytes();
+            }
+
+            @Override
+            public Token decode(byte[] data) throws IOException {
+                decodes.incrementAndGet();
+                decodeStarted.countDown();
+                try {
+                    decodeReleased.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return new Token(new String(data));
+            }
+        });
+        mDiskCache.put("k", (Object) new Token("v"));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Callable<Token> get = new Callable<Token>() {
+                @Override
+                public Token call() {
+                    return mCache.get("k", Token.class);
+                }
+            };
+            List<Future<Token>> results = new ArrayList<>();
+            results.add(executor.submit(get));
+            assertTrue(decodeStarted.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(get));
+            }
+            decodeReleased.countDown();
+
+            Token first = results.get(0).get(5, TimeUnit.SECONDS);
+            assertEquals("v", first.mValue);
+            for (Future<Token> result : results) {
+                // Either waited for the shared read or hit the promoted value
+                assertSame(first, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, decodes.get());
+        } finally {
+            decodeReleased.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static class CountingLoader implements FusionCache.Loader<String> {
+        final String mValue;
+        int mCalls;
+
+        CountingLoader(String value) {
+            mValue = value;
+        }
+
+        @Override
+        public String load(String key) {
+            mCalls++;
+            return mValue;
+        }
+    }
+
+    private static class RecordingCallback<T> implements FusionCache.Callback<T> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicReference<T> mResult = new AtomicReference<>();
+        final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+        final AtomicReference<Thread> mThread = new AtomicReference<>();
+
+        @Override
+        public void onSuccess(T result) {
+            mResult.set(result);
+            mThread.set(Thread.currentThread());
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            mFailure.set(t);
+            mThread.set(Thread.currentThread());
+            mDone.countDown();
+        }
+    }
+
+    private static final class Token {
+        final String mValue;
+
+        Token(String value) {
+            mValue = value;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LruCacheWrapperTest {
+    @Test
+    public void brokenPolicyErrorIsNotRewritten() {
+        LruCacheWrapper<String, String> cache = new LruCacheWrapper<>(1, new UnitDelegate(),
+                new EvictionPolicy<String>() {
+                    @Override
+                    public void onInsert(String key, int size) {
+                    }
+
+                    @Override
+                    public void onAccess(String key) {
+                    }
+
+                    @Override
+                    public void onRemove(String key) {
+                    }
+
+                    @Override
+                    public String victim() {
+                        return "not cached";
+                    }
+                });
+        cache.put("a", "1");
+        try {
+            cache.put("b", "2");
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("victim() returned a key not in the cache"));
+        }
+    }
+
+    @Test
+    public void inconsistentSizeIsReportedAsModifiedObject() {
+        final StringBuilder value = new StringBuilder("12345");
+        LruCacheWrapper<String, StringBuilder> cache = new LruCacheWrapper<>(100,
+                new LruCacheWrapper.Delegate<String, StringBuilder>() {
+                    @Override
+                    public int sizeOf(String key, StringBuilder v) {
+                        return v.length();
+                    }
+
+                    @Override
+                    public void entryRemoved(boolean evicted, String key, StringBuilder oldValue, StringBuilder newValue) {
+                    }
+                });
+        cache.put("a", value);
+        // Grows the cached object behind the cache's back
+        value.append("67890");
+        try {
+            cache.remove("a");
+            cache.put("b", new StringBuilder("x"));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Cache object was modified without calling put() again.", e.getMessage());
+            assertTrue(e.getCause() instanceof LruCache.InconsistentSizeException);
+        }
+    }
+
+    private static class UnitDelegate implements LruCacheWrapper.Delegate<String, String> {
+        @Override
+        public int sizeOf(String key, String value) {
+            return 1;
+        }
+
+        @Override
+        public void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+        }
+    }
+}
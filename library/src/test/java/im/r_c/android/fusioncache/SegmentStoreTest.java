@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentStoreTest {
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ByteArrayPool mPool = new ByteArrayPool(MAX_SIZE);
+
+    @Test
+    public void latestValuesSurviveReopen() throws IOException {
+        File dir = mFolder.newFolder();
+        SegmentStore store = SegmentStore.open(dir, MAX_SIZE);
+        put(store, "a", "1");
+        put(store, "b", "2");
+        put(store, "c", "3");
+        put(store, "a", "new");
+        assertTrue(store.remove("b"));
+        assertFalse(store.remove("b"));
+        long size = store.size();
+
+        store = SegmentStore.open(dir, MAX_SIZE);
+        assertEquals("new", get(store, "a"));
+        assertNull(get(store, "b"));
+        assertEquals("3", get(store, "c"));
+        assertEquals(size, store.size());
+    }
+
+    @Test
+    public void tornRecordIsTruncatedOnOpen() throws IOException {
+        File dir = mFolder.newFolder();
+        SegmentStore store = SegmentStore.open(dir, MAX_SIZE);
+        put(store, "a", "1");
+        File segment = onlySegment(dir);
+        long length = segment.length();
+        FileOutputStream out = new FileOutputStream(segment, true);
+        // A header promising more than is there
+        out.write(new byte[]{0, 0, 0, 0, 0, 1, 0, 0, 0, 100, 'b'});
+        out.close();
+
+        store = SegmentStore.open(dir, MAX_SIZE);
+        assertEquals(length, segment.length());
+        assertEquals("1", get(store, "a"));
+        put(store, "b", "2");
+
+        store = SegmentStore.open(dir, MAX_SIZE);
+        assertEquals("1", get(store, "a"));
+        assertEquals("2", get(store, "b"));
+    }
+
+    @Test
+    public void corruptValueIsDropped() throws IOException {
+        File dir = mFolder.newFolder();
+        SegmentStore store = SegmentStore.open(dir, MAX_SIZE);
+        put(store, "a", "1");
+        RandomAccessFile segment = new RandomAccessFile(onlySegment(dir), "rw");
+        try {
+            segment.seek(segment.length() - 1);
+            segment.write('2');
+        } finally {
+            segment.close();
+        }
+
+        assertNull(get(store, "a"));
+        assertEquals(0, store.size());
+        assertNull(get(SegmentStore.open(dir, MAX_SIZE), "a"));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        File dir = mFolder.newFolder();
+        SegmentStore store = SegmentStore.open(dir, MAX_SIZE);
+        put(store, "a", "1");
+        long recordLength = store.size();
+        store.setMaxSize(recordLength * 2);
+        put(store, "b", "2");
+        assertEquals("1", get(store, "a"));
+        put(store, "c", "3");
+        assertNull(get(store, "b"));
+        assertEquals("1", get(store, "a"));
+        assertEquals("3", get(store, "c"));
+        assertEquals(recordLength * 2, store.size());
+
+        store.setMaxSize(recordLength);
+        assertNull(get(store, "a"));
+        assertEquals("3", get(store, "c"));
+    }
+
+    @Test
+    public void deadSegmentsAreCompacted() throws Exception {
+        File dir = mFolder.newFolder();
+        // About 10 records a segment
+        SegmentStore store = SegmentStore.open(dir, MAX_SIZE, 200);
+        for (int i = 0; i < 10; i++) {
+            put(store, "k" + i, "v" + i);
+        }
+        put(store, "removed", "v");
+        store.remove("removed");
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 5; i++) {
+                put(store, "k" + i, "r" + round);
+            }
+        }
+
+        // Compacted in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while (segmentsIn(dir).length > 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(segmentsIn(dir).length <= 3);
+
+        for (SegmentStore reopened : new SegmentStore[]{store, SegmentStore.open(dir, MAX_SIZE, 200)}) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i < 5 ? "r9" : "v" + i, get(reopened, "k" + i));
+            }
+            assertNull(get(reopened, "removed"));
+        }
+    }
+
+    @Test
+    public void clearDeletesTheSegments() throws IOException {
+        File dir = mFolder.newFolder();
+        SegmentStore store = SegmentStore.open(dir, MAX_SIZE);
+        put(store, "a", "1");
+        store.clear();
+        assertEquals(0, segmentsIn(dir).length);
+        assertNull(get(store, "a"));
+        put(store, "b", "2");
+        assertEquals("2", get(SegmentStore.open(dir, MAX_SIZE), "b"));
+    }
+
+    private static void put(SegmentStore store, String key, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        store.put(key, new byte[0], bytes, bytes.length);
+    }
+
+    private String get(SegmentStore store, String key) throws IOException {
+        SegmentStore.Value value = store.get(key, mPool);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new String(value.bytes, value.offset, value.length, "UTF-8");
+        } finally {
+            mPool.release(value.bytes);
+        }
+    }
+
+    private static File[] segmentsIn(File dir) {
+        File[] files = dir.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    private static File onlySegment(File dir) {
+        File[] segments = segmentsIn(dir);
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SpillQueueTest {
+    private final CountDownLatch mFirstWriteStarted = new CountDownLatch(1);
+    private final CountDownLatch mFirstWriteReleased = new CountDownLatch(1);
+    private final List<String> mWrites = Collections.synchronizedList(new ArrayList<String>());
+
+    private final SpillQueue mQueue = new SpillQueue(100, new SpillQueue.Writer() {
+        @Override
+        public void write(String key, MemCache.ValueWrapper value, long seq) {
+            mWrites.add(key + "=" + value.obj);
+            if (mFirstWriteStarted.getCount() > 0) {
+                mFirstWriteStarted.countDown();
+                try {
+                    mFirstWriteReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    });
+
+    @After
+    public void tearDown() {
+        mFirstWriteReleased.countDown();
+        mQueue.close();
+    }
+
+    @Test
+    public void entriesAreWrittenInOfferOrderWithTheLatestValue() throws Exception {
+        MemCache.ValueWrapper first = value("1");
+        mQueue.offer("a", first, 0);
+        assertTrue(mFirstWriteStarted.await(5, TimeUnit.SECONDS));
+
+        // Still visible while being written
+        assertSame(first, mQueue.get("a"));
+
+        mQueue.offer("b", value("1"), 0);
+        mQueue.offer("c", value("1"), 0);
+        mQueue.offer("b", value("2"), 0);
+        mQueue.offer("a", value("2"), 0);
+        assertEquals("2", mQueue.get("a").obj);
+
+        mFirstWriteReleased.countDown();
+        mQueue.flush();
+        assertEquals(Arrays.asList("a=1", "c=1", "b=2", "a=2"), mWrites);
+        assertNull(mQueue.get("a"));
+        assertNull(mQueue.get("b"));
+    }
+
+    @Test
+    public void removedAndClearedEntriesAreNotWritten() throws Exception {
+        mQueue.offer("a", value("1"), 0);
+        assertTrue(mFirstWriteStarted.await(5, TimeUnit.SECONDS));
+
+        mQueue.offer("b", value("1"), 0);
+        mQueue.offer("c", value("1"), 0);
+        mQueue.remove("b");
+        assertNull(mQueue.get("b"));
+        mQueue.clear();
+        mQueue.offer("d", value("1"), 0);
+
+        mFirstWriteReleased.countDown();
+        mQueue.flush();
+        assertEquals(Arrays.asList("a=1", "d=1"), mWrites);
+    }
+
+    @Test
+    public void closedQueueRejectsOffers() {
+        mQueue.close();
+        assertFalse(mQueue.offer("a", value("1"), 0));
+        assertTrue(mWrites.isEmpty());
+    }
+
+    private static MemCache.ValueWrapper value(String obj) {
+        return new MemCache.ValueWrapper(obj, 1);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 Richard Chien
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package im.r_c.android.fusioncache;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValueWrapperTest {
+    @Test
+    public void poolableOnceUncachedAndEveryAcquireReleased() {
+        MemCache.ValueWrapper wrapper = tracked();
+        assertTrue(wrapper.retain());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.releaseAcquired());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.uncache());
+        assertEquals(MemCache.ValueWrapper.POOLABLE, wrapper.releaseAcquired());
+
+        // Released already
+        assertFalse(wrapper.retain());
+        assertFalse(wrapper.share());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.releaseAcquired());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.uncache());
+    }
+
+    @Test
+    public void releasedInEitherOrder() {
+        MemCache.ValueWrapper wrapper = tracked();
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.releaseAcquired());
+        assertEquals(MemCache.ValueWrapper.POOLABLE, wrapper.uncache());
+    }
+
+    @Test
+    public void sharedValueIsNeverPooled() {
+        MemCache.ValueWrapper wrapper = tracked();
+        assertTrue(wrapper.share());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.uncache());
+        assertEquals(MemCache.ValueWrapper.DEAD, wrapper.releaseAcquired());
+    }
+
+    @Test
+    public void untrackedValueIsNeverPooled() {
+        MemCache.ValueWrapper wrapper = new MemCache.ValueWrapper("v", 1);
+        assertTrue(wrapper.retain());
+        assertTrue(wrapper.share());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.releaseAcquired());
+        assertEquals(MemCache.ValueWrapper.ALIVE, wrapper.uncache());
+        assertTrue(wrapper.retain());
+    }
+
+    /**
+     * As put by the cache after decoding, cached and acquired once.
+     */
+    private static MemCache.ValueWrapper tracked() {
+        MemCache.ValueWrapper wrapper = new MemCache.ValueWrapper("v", 1);
+        wrapper.track();
+        return wrapper;
+    }
+}
@@ -43,6 +43,7 @@ import java.util.List;
 
 import im.r_c.android.commonrecyclerviewadapter.CommonRecyclerViewAdapter;
 import im.r_c.android.commonrecyclerviewadapter.ViewHolder;
+import im.r_c.android.fusioncache.FusionCache;
 import im.r_c.android.fusioncache.sample.util.HttpUtils;
 import rx.Observable;
 import rx.Subscriber;
@@ -246,29 +247,29 @@ public class MainActivity extends AppCompatActivity implements SwipeRefreshLayou
                     .map(new Func1<String, Bitmap>() {
                         @Override
                         public Bitmap call(String urlString) {
-                            Bitmap bitmap = App.getCache().getBitmap(urlString);
-                            if (bitmap == null) {
-                                HttpURLConnection connection = null;
-                                try {
-                                    URL url = new URL(urlString);
-                                    connection = (HttpURLConnection) url.openConnection();
-                                    connection.setRequestMethod("GET");
-                                    connection.setConnectTimeout(DEFAULT_CONNECTION_TIME_OUT);
-                                    connection.setReadTimeout(DEFAULT_READ_TIME_OUT);
-                                    bitmap = BitmapFactory.decodeStream(connection.getInputStream());
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                } finally {
-                                    if (connection != null) {
-                                        connection.disconnect();
+                            // Concurrent rows asking for the same image share one download
+                            return App.getCache().get(urlString, Bitmap.class, new FusionCache.Loader<Bitmap>() {
+                                @Override
+                                public Bitmap load(String key) {
+                                    Bitmap bitmap = null;
+                                    HttpURLConnection connection = null;
+                                    try {
+                                        URL url = new URL(key);
+                                        connection = (HttpURLConnection) url.openConnection();
+                                        connection.setRequestMethod("GET");
+                                        connection.setConnectTimeout(DEFAULT_CONNECTION_TIME_OUT);
+                                        connection.setReadTimeout(DEFAULT_READ_TIME_OUT);
+                                        bitmap = BitmapFactory.decodeStream(connection.getInputStream());
+                                    } catch (IOException e) {
+                                        e.printStackTrace();
+                                    } finally {
+                                        if (connection != null) {
+                                            connection.disconnect();
+                                        }
                                     }
+                                    return bitmap;
                                 }
-
-                                if (bitmap != null) {
-                                    App.getCache().put(urlString, bitmap);
-                                }
-                            }
-                            return bitmap;
+                            });
                         }
                     })
                     .subscribeOn(Schedulers.io())